@@ -0,0 +1,66 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The addmany handler across input sizes, on a parsed request (the generic JSONArray path),
+ * including the parse of the request text as the server receives it (read straight into a long[])
+ * and the exact sum alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dsockserver.accesslog.file=", "-Dsockserver.quiz.log=", "-Dsockserver.stats.interval=0"})
+@State(Scope.Thread)
+public class AddManyBenchmark {
+    @Param({"10", "1000", "100000", "1000000"})
+    public int size;
+
+    private JSONObject parsed;
+    private String text;
+    private long[] values;
+
+    @Setup
+    public void setup() {
+        JSONArray nums = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            nums.put(i % 100);
+        }
+        parsed = new JSONObject();
+        parsed.put("type", "addmany");
+        parsed.put("nums", nums);
+        text = parsed.toString();
+        values = new long[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = i % 100;
+        }
+    }
+
+    @Benchmark
+    public JSONObject handler() {
+        return SockServer.addmany(parsed);
+    }
+
+    @Benchmark
+    public JSONObject parseAndHandle() {
+        return SockServer.addmany(RequestView.parse(text));
+    }
+
+    @Benchmark
+    public Number sum() {
+        return AddMany.sum(values);
+    }
+}
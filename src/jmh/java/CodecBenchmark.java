@@ -0,0 +1,85 @@
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request decoding and response encoding: JSON parse, writeOut serialization of a built response
+ * and of one written directly, and the equivalent binary protocol frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dsockserver.accesslog.file=", "-Dsockserver.quiz.log=", "-Dsockserver.stats.interval=0"})
+@State(Scope.Thread)
+public class CodecBenchmark {
+    private String requestText;
+    private JSONObject response;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final ResponseWriter writer = new ResponseWriter();
+    private JSONObject request;
+    private ByteBuffer addFrame;
+    private final SockServer.Question[] holder = new SockServer.Question[1];
+
+    @Setup
+    public void setup() {
+        requestText = "{\"type\":\"add\",\"num1\":\"12345\",\"num2\":\"67890\",\"id\":17}";
+        response = SockServer.handleRequest(requestText, holder, null);
+        request = new JSONObject(requestText);
+        addFrame = ByteBuffer.allocate(9);
+        addFrame.put(BinaryProtocol.ADD).putInt(12345).putInt(67890).flip();
+    }
+
+    @Benchmark
+    public JSONObject parse() {
+        RequestView req = RequestView.parse(requestText);
+        req.opt("type");
+        return req;
+    }
+
+    @Benchmark
+    public JSONObject parseAndDispatch() {
+        return SockServer.handleRequest(requestText, holder, null);
+    }
+
+    @Benchmark
+    public int writeOut() {
+        bytes.reset();
+        SockServer.writeOut(out, response, writer);
+        return bytes.size();
+    }
+
+    @Benchmark
+    public int writeDirect() {
+        bytes.reset();
+        SockServer.add(request, writer);
+        writer.end(request.opt("id"));
+        SockServer.writeOut(out, ResponseWriter.WRITTEN, writer);
+        return bytes.size();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeUtf() throws UTFDataFormatException {
+        return WireFormat.encodeUtf(response.toString());
+    }
+
+    @Benchmark
+    public ByteBuffer binaryAdd() {
+        return BinaryProtocol.handleFrame(addFrame.duplicate(), holder, null);
+    }
+}
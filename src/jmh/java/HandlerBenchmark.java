@@ -0,0 +1,97 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of validation and of each service handler on an already parsed request.
+ * Request parsing and response encoding are measured in CodecBenchmark, addmany in AddManyBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dsockserver.accesslog.file=", "-Dsockserver.quiz.log=", "-Dsockserver.stats.interval=0"})
+@State(Scope.Thread)
+public class HandlerBenchmark {
+    private String echoText;
+    private JSONObject echo;
+    private JSONObject add;
+    private JSONObject concatenation;
+    private JSONObject quizNext;
+    private JSONObject quizAnswer;
+    private final SockServer.Question[] holder = new SockServer.Question[1];
+
+    @Setup
+    public void setup() {
+        echo = new JSONObject();
+        echo.put("type", "echo");
+        echo.put("data", "Hello, benchmark!");
+        echoText = echo.toString();
+
+        add = new JSONObject();
+        add.put("type", "add");
+        add.put("num1", "12345");
+        add.put("num2", "67890");
+
+        JSONArray strings = new JSONArray();
+        for (int i = 0; i < 16; i++) {
+            strings.put("part" + i);
+        }
+        concatenation = new JSONObject();
+        concatenation.put("type", "stringconcatenation");
+        concatenation.put("strings", strings);
+
+        quizNext = new JSONObject();
+        quizNext.put("type", "quizgame");
+        quizNext.put("addQuestion", false);
+
+        quizAnswer = new JSONObject();
+        quizAnswer.put("type", "quizgame");
+        quizAnswer.put("answer", "not the answer");
+    }
+
+    @Benchmark
+    public JSONObject isValid() {
+        return SockServer.isValid(echoText);
+    }
+
+    @Benchmark
+    public JSONObject testField() {
+        return SockServer.testField(echo, "type");
+    }
+
+    @Benchmark
+    public JSONObject echo() {
+        return SockServer.echo(echo);
+    }
+
+    @Benchmark
+    public JSONObject add() {
+        return SockServer.add(add);
+    }
+
+    @Benchmark
+    public JSONObject concatenation() {
+        return SockServer.concatenation(concatenation);
+    }
+
+    /**
+     * Draws a question, then answers it wrongly so the question stays active.
+     */
+    @Benchmark
+    public JSONObject quizGame() {
+        SockServer.quizGame(quizNext, holder);
+        return SockServer.quizGame(quizAnswer, holder);
+    }
+}
@@ -0,0 +1,76 @@
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full request/response round trips over loopback against a server started in the benchmark JVM,
+ * one request in flight at a time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dsockserver.accesslog.file=", "-Dsockserver.quiz.log=", "-Dsockserver.stats.interval=0"})
+@State(Scope.Thread)
+public class LoopbackBenchmark {
+    private static final String ADD_REQUEST = "{\"type\":\"add\",\"num1\":\"12345\",\"num2\":\"67890\"}";
+
+    @Param({"virtual", "nio"})
+    public String engine;
+
+    private SockServer server;
+    private Socket sock;
+    private ObjectOutputStream os;
+    private DataInputStream in;
+    private BinaryClient binary;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new SockServer(0, engine, "nio".equals(engine) ? 1 : WorkerPools.DEFAULT_POOL_SIZE);
+        server.start();
+        int port = server.getPort();
+        sock = new Socket("localhost", port);
+        sock.setTcpNoDelay(true);
+        os = new ObjectOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+        os.flush();
+        in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        binary = new BinaryClient("localhost", port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sock.close();
+        binary.close();
+        server.close();
+    }
+
+    @Benchmark
+    public String jsonRoundTrip() throws IOException {
+        os.writeUnshared(ADD_REQUEST);
+        os.flush();
+        return in.readUTF();
+    }
+
+    @Benchmark
+    public int binaryRoundTrip() throws IOException {
+        return binary.add(12345, 67890);
+    }
+}
@@ -0,0 +1,199 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One compact line per request: time, peer, type, status, bytes in/out and latency.
+ * <p>
+ * Request threads copy their Exchange into a preallocated slot of a ring buffer (claimed with a
+ * CAS, no locks, no allocation) and a background thread formats and writes the lines.
+ * When the writer falls behind the ring fills up and further records are dropped and counted
+ * rather than slowing requests down. Successful requests can be sampled; errors are always kept.
+ */
+final class AccessLog {
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+    private final Slot[] ring;
+    private final int mask;
+    private final double sampleRate;
+    private final int maxPayload;
+    private final Writer out;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * A preallocated record. published holds the sequence number once the slot is filled.
+     */
+    private static final class Slot {
+        volatile long published = -1;
+        long timeMillis;
+        SocketAddress peer;
+        String type;
+        boolean ok;
+        int bytesIn;
+        int bytesOut;
+        long latencyNanos;
+        String request;
+    }
+
+    /**
+     * @param out        where lines are written
+     * @param capacity   ring size, rounded up to a power of two
+     * @param sampleRate fraction of successful requests to log, 1.0 logs all
+     * @param maxPayload characters of the request text to include, 0 for none
+     */
+    AccessLog(Writer out, int capacity, double sampleRate, int maxPayload) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.sampleRate = sampleRate;
+        this.maxPayload = maxPayload;
+        this.out = out;
+        this.writer = new Thread(this::drain, "access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Opens the access log configured by system properties:
+     * sockserver.accesslog.file (default access.log, empty disables logging),
+     * sockserver.accesslog.buffer (ring slots, default 65536),
+     * sockserver.accesslog.sample (default 1.0) and
+     * sockserver.accesslog.payload (request characters to include, default 0).
+     *
+     * @return the access log, or null if it is disabled or the file cannot be opened
+     */
+    static AccessLog fromSystemProperties() {
+        String file = System.getProperty("sockserver.accesslog.file", "access.log");
+        if (file.isEmpty()) {
+            return null;
+        }
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+            return new AccessLog(out, Integer.getInteger("sockserver.accesslog.buffer", 65536),
+                    Double.parseDouble(System.getProperty("sockserver.accesslog.sample", "1.0")),
+                    Integer.getInteger("sockserver.accesslog.payload", 0));
+        } catch (IOException e) {
+            logger.error("Cannot open access log {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Records a finished exchange. Never blocks.
+     */
+    void record(SocketAddress peer, Exchange exchange) {
+        if (exchange.ok && sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        Slot slot = ring[(int) (seq & mask)];
+        slot.timeMillis = System.currentTimeMillis();
+        slot.peer = peer;
+        slot.type = exchange.type;
+        slot.ok = exchange.ok;
+        slot.bytesIn = exchange.bytesIn;
+        slot.bytesOut = exchange.bytesOut;
+        slot.latencyNanos = exchange.latencyNanos();
+        slot.request = maxPayload > 0 ? exchange.request : null;
+        slot.published = seq; // volatile write publishes the fields above
+    }
+
+    /**
+     * @return number of records dropped because the ring was full
+     */
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        while (running || tail != head.get()) {
+            long seq = tail;
+            Slot slot = ring[(int) (seq & mask)];
+            if (slot.published != seq) {
+                flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            line.setLength(0);
+            format(slot, line);
+            slot.peer = null;
+            slot.request = null;
+            tail = seq + 1; // frees the slot for producers
+            try {
+                out.append(line);
+            } catch (IOException e) {
+                logger.error("Error writing access log: {}", e.getMessage());
+            }
+        }
+        flush();
+    }
+
+    private void format(Slot slot, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(slot.timeMillis))
+                .append(" peer=").append(slot.peer)
+                .append(" type=").append(slot.type)
+                .append(" status=").append(slot.ok ? "ok" : "error")
+                .append(" in=").append(slot.bytesIn)
+                .append(" out=").append(slot.bytesOut)
+                .append(" latency_us=").append(slot.latencyNanos / 1000);
+        if (slot.request != null) {
+            line.append(" req=");
+            if (slot.request.length() > maxPayload) {
+                line.append(slot.request, 0, maxPayload).append("...");
+            } else {
+                line.append(slot.request);
+            }
+        }
+        line.append('\n');
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            logger.error("Error flushing access log: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes out the remaining records and stops the writer thread.
+     */
+    void close() throws InterruptedException {
+        running = false;
+        writer.join();
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.error("Error closing access log: {}", e.getMessage());
+        }
+    }
+}
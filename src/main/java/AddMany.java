@@ -0,0 +1,80 @@
+import java.math.BigInteger;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Exact sum of a long array, the work behind the addmany service.
+ * <p>
+ * Every value is split into its signed high and unsigned low 32 bits, which are summed separately:
+ * neither sum can overflow for any array length Java allows, the loop has no branches (so the JIT
+ * can vectorize it) and the two halves recombine into the exact total. Arrays of at least
+ * PARALLEL_THRESHOLD values are split across the fork-join common pool.
+ */
+final class AddMany {
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final long LOW_MASK = 0xFFFFFFFFL;
+
+    private AddMany() {
+    }
+
+    /**
+     * @return the exact sum, a Long if it fits and a BigInteger otherwise
+     */
+    static Number sum(long[] nums) {
+        SumTask task = new SumTask(nums, 0, nums.length);
+        if (nums.length < PARALLEL_THRESHOLD) {
+            task.compute();
+        } else {
+            task.invoke();
+        }
+        long high = task.high;
+        long low = task.low;
+        // total = high * 2^32 + low, where low is not negative
+        if (high >= Integer.MIN_VALUE && high <= Integer.MAX_VALUE) {
+            long shifted = high << 32;
+            long total = shifted + low;
+            if (((shifted ^ total) & (low ^ total)) >= 0) { // no overflow in the addition
+                return total;
+            }
+        }
+        return BigInteger.valueOf(high).shiftLeft(32).add(BigInteger.valueOf(low));
+    }
+
+    /**
+     * Sums one range, splitting it in halves until it is small enough to run directly.
+     */
+    private static final class SumTask extends RecursiveAction {
+        private final long[] nums;
+        private final int from;
+        private final int to;
+        long high;
+        long low;
+
+        SumTask(long[] nums, int from, int to) {
+            this.nums = nums;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < PARALLEL_THRESHOLD) {
+                long h = 0;
+                long l = 0;
+                for (int i = from; i < to; i++) {
+                    long value = nums[i];
+                    h += value >> 32;
+                    l += value & LOW_MASK;
+                }
+                high = h;
+                low = l;
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            SumTask left = new SumTask(nums, from, mid);
+            SumTask right = new SumTask(nums, mid, to);
+            invokeAll(left, right);
+            high = left.high + right.high;
+            low = left.low + right.low;
+        }
+    }
+}
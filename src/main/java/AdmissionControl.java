@@ -0,0 +1,242 @@
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission control shared by every server in the process: a cap on open connections, the number
+ * of connections that may wait for a platform worker, and an adaptive limit on requests being
+ * handled at once. Work beyond either is shed right away, so a
+ * traffic spike costs a bounded fraction of requests instead of slowing down all of them.
+ * <p>
+ * The request limit follows the latency of admitted requests, measured from the request decoded
+ * to its response built. Every window of WINDOW_NANOS the average latency of the window is
+ * compared with a slowly moving baseline: while it stays within TOLERANCE times the baseline the
+ * limit grows by the square root of itself, when it rises above that the limit shrinks in
+ * proportion (smoothed over a few windows), but never below minLimit or above maxLimit. Windows in which fewer than half of the
+ * permits were used leave the limit alone, since an idle server says nothing about its capacity.
+ * <p>
+ * A shed request is answered with BUSY, which is encoded once for every framing, and is never
+ * parsed.
+ */
+final class AdmissionControl {
+    static final String BUSY_TEXT = "{\"ok\":false,\"message\":\"busy\"}";
+    // Returned in place of a response for shed requests; writers send the pre-encoded bytes instead.
+    static final JSONObject BUSY = new JSONObject(BUSY_TEXT);
+    private static final byte[] BUSY_UTF = encodeUtf();
+    private static final byte[] BUSY_CHUNKED = encodeChunked();
+
+    static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    private static final double TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.2;
+    private static final int BASELINE_WINDOWS = 60; // the baseline follows the latency over about 6 seconds
+
+    private final int maxConnections;
+    private final int connectionQueue;
+    private final int minLimit;
+    private final int maxLimit;
+    private final LongSupplier clock;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private volatile int limit;
+
+    // Samples of the current window
+    private final LongAdder windowLatency = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final AtomicInteger windowPeak = new AtomicInteger();
+    private volatile long windowEnd;
+    // Guarded by windowLock, which only the thread closing a window takes
+    private final ReentrantLock windowLock = new ReentrantLock();
+    private double estimatedLimit;
+    private double baselineNanos;
+
+    /**
+     * @param maxConnections  open connections allowed, 0 for no cap
+     * @param connectionQueue connections that may wait for a platform worker, 0 for none
+     * @param initialLimit   requests handled at once before any latency was observed, 0 for no limit
+     * @param minLimit       lowest the request limit may go
+     * @param maxLimit       highest the request limit may go
+     * @param clock          System::nanoTime, or a fake clock in tests
+     */
+    AdmissionControl(int maxConnections, int connectionQueue, int initialLimit, int minLimit, int maxLimit, LongSupplier clock) {
+        if (maxConnections < 0 || connectionQueue < 0 || initialLimit < 0 || minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid admission limits: connections " + maxConnections
+                    + ", queue " + connectionQueue + ", requests " + initialLimit + " within " + minLimit + ".." + maxLimit);
+        }
+        this.maxConnections = maxConnections;
+        this.connectionQueue = connectionQueue;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.clock = clock;
+        this.estimatedLimit = initialLimit == 0 ? 0 : Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+        this.windowEnd = clock.getAsLong() + WINDOW_NANOS;
+    }
+
+    static AdmissionControl fromSystemProperties() {
+        return new AdmissionControl(Integer.getInteger("sockserver.admission.maxConnections", 10000),
+                Integer.getInteger("sockserver.admission.queue", 1000),
+                Integer.getInteger("sockserver.admission.limit", 200),
+                Integer.getInteger("sockserver.admission.minLimit", 20),
+                Integer.getInteger("sockserver.admission.maxLimit", 2000), System::nanoTime);
+    }
+
+    /**
+     * @return true if the connection may be served; it must then be closed with connectionClosed
+     */
+    boolean tryOpenConnection() {
+        if (maxConnections == 0) {
+            return true;
+        }
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            refused.increment();
+            return false;
+        }
+        return true;
+    }
+
+    void connectionClosed() {
+        if (maxConnections != 0) {
+            connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if the request may be handled; release must follow once its response is built
+     */
+    boolean tryAcquire() {
+        if (limit == 0) {
+            return true;
+        }
+        while (true) {
+            int n = inFlight.get();
+            if (n >= limit) {
+                shed.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(n, n + 1)) {
+                if (n + 1 > windowPeak.get()) {
+                    windowPeak.accumulateAndGet(n + 1, Math::max);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latencyNanos time from the request decoded to its response built
+     */
+    void release(long latencyNanos) {
+        if (limit == 0) {
+            return;
+        }
+        inFlight.decrementAndGet();
+        windowLatency.add(latencyNanos);
+        windowSamples.increment();
+        long now = clock.getAsLong();
+        if (now - windowEnd >= 0 && windowLock.tryLock()) {
+            try {
+                if (now - windowEnd >= 0) {
+                    closeWindow(now);
+                }
+            } finally {
+                windowLock.unlock();
+            }
+        }
+    }
+
+    private void closeWindow(long now) {
+        long samples = windowSamples.sumThenReset();
+        long latency = windowLatency.sumThenReset();
+        int peak = windowPeak.getAndSet(inFlight.get());
+        windowEnd = now + WINDOW_NANOS;
+        if (samples < MIN_WINDOW_SAMPLES) {
+            return;
+        }
+        double average = (double) latency / samples;
+        if (baselineNanos == 0) {
+            baselineNanos = average;
+        } else {
+            baselineNanos += (average - baselineNanos) / BASELINE_WINDOWS;
+            if (baselineNanos > average * TOLERANCE) {
+                baselineNanos = average * TOLERANCE; // recover quickly once an overload is over
+            }
+        }
+        if (peak * 2 < estimatedLimit) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baselineNanos / average));
+        double next;
+        if (gradient == 1.0) {
+            next = estimatedLimit + Math.sqrt(estimatedLimit);
+        } else {
+            // smoothed, so one slow window does not halve the limit
+            double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            next = estimatedLimit * (1 - SMOOTHING) + target * SMOOTHING;
+        }
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, next));
+        limit = (int) estimatedLimit;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * @return connections the platform pool may queue while all its threads are busy
+     */
+    int connectionQueue() {
+        return connectionQueue;
+    }
+
+    /**
+     * Writes the busy response to a blocking connection.
+     */
+    static void writeBusy(OutputStream out, boolean chunked) throws IOException {
+        out.write(chunked ? BUSY_CHUNKED : BUSY_UTF);
+    }
+
+    /**
+     * @return the busy response, ready to be written to a channel
+     */
+    static ByteBuffer busy(boolean chunked) {
+        return ByteBuffer.wrap(chunked ? BUSY_CHUNKED : BUSY_UTF).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the current limits and how much was turned away, for the "stats" request
+     */
+    JSONObject snapshot() {
+        JSONObject json = new JSONObject();
+        json.put("connections", connections.get());
+        json.put("maxConnections", maxConnections);
+        json.put("refusedConnections", refused.sum());
+        json.put("inFlight", inFlight.get());
+        json.put("limit", limit);
+        json.put("shed", shed.sum());
+        return json;
+    }
+
+    private static byte[] encodeUtf() {
+        ByteBuffer buf = ByteBuffer.allocate(2 + BUSY_TEXT.length());
+        buf.putShort((short) BUSY_TEXT.length()).put(BUSY_TEXT.getBytes(StandardCharsets.UTF_8)); // ASCII only
+        return buf.array();
+    }
+
+    private static byte[] encodeChunked() {
+        ByteBuffer buf = ByteBuffer.allocate(4 + BUSY_TEXT.length() + 4);
+        buf.putInt(BUSY_TEXT.length()).put(BUSY_TEXT.getBytes(StandardCharsets.UTF_8)).putInt(0);
+        return buf.array();
+    }
+}
@@ -0,0 +1,391 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Compact binary alternative to the JSON protocol. A client selects it by sending PREFACE instead
+ * of the Java serialization header as the first four bytes of the connection.
+ * <p>
+ * Every message is a frame: a 4 byte big-endian length (of the rest of the frame), a 1 byte opcode
+ * and the payload. Responses add a status byte after the opcode: STATUS_OK followed by the typed
+ * result, or STATUS_ERROR followed by the error message.
+ * Ints are 4 byte big-endian, longs 8 byte big-endian, strings are a 4 byte byte-count followed
+ * by UTF-8 bytes, arrays are a 4 byte element count followed by the elements.
+ * <pre>
+ * opcode          request payload                           ok response payload
+ * ECHO         1  string data                               string echo
+ * ADD          2  int num1, int num2                        int result
+ * ADDMANY      3  int[] nums                                long result
+ * CONCAT       4  string string1, string string2            string result
+ * CONCAT_MANY  5  string[] strings                          string result
+ * QUIZ_ADD     6  string question, string answer            (empty)
+ * QUIZ_NEXT    7  (empty)                                   string question
+ * QUIZ_ANSWER  8  string answer                             byte correct, string question if not correct
+ * QUIZ_OPTIONS 9  string question, string[] options, int answer   int result
+ * </pre>
+ */
+final class BinaryProtocol {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryProtocol.class);
+
+    static final byte[] PREFACE = {'S', 'K', 'B', 0x01};
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    private static final int INITIAL_FRAME_SIZE = 256;
+    // Frame buffers grown beyond this for one request are dropped afterwards.
+    private static final int MAX_KEPT_FRAME = 1024 * 1024;
+
+    static final byte ECHO = 1;
+    static final byte ADD = 2;
+    static final byte ADDMANY = 3;
+    static final byte CONCAT = 4;
+    static final byte CONCAT_MANY = 5;
+    static final byte QUIZ_ADD = 6;
+    static final byte QUIZ_NEXT = 7;
+    static final byte QUIZ_ANSWER = 8;
+    static final byte QUIZ_OPTIONS = 9;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    // Request types for the access log, indexed by opcode.
+    private static final String[] OPCODE_NAMES = {Exchange.UNKNOWN_TYPE, "echo", "add", "addmany", "concat",
+            "concatmany", "quizadd", "quiznext", "quizanswer", "quizoptions"};
+    // Answers to frames shed by admission control, encoded once and indexed by opcode.
+    private static final ByteBuffer[] BUSY_FRAMES = new ByteBuffer[OPCODE_NAMES.length];
+
+    static {
+        for (int opcode = 1; opcode < BUSY_FRAMES.length; opcode++) {
+            BUSY_FRAMES[opcode] = new Response((byte) opcode).error("busy").finish();
+        }
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Serves a binary connection until the client disconnects. The preface has already been consumed.
+     *
+     * @param deadline the connection's deadline, told when a whole frame has arrived
+     */
+    static void serve(DataInputStream in, OutputStream os, SockServer.Question[] currentQuizQuestionHolder,
+                      SocketAddress peer, ConnectionTimeouts.Deadline deadline) throws IOException {
+        Exchange exchange = new Exchange();
+        byte[] frame = new byte[INITIAL_FRAME_SIZE]; // reused for every frame
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException eof) {
+                return;
+            }
+            long readStart = System.nanoTime();
+            if (length < 1 || length > MAX_FRAME_LENGTH) {
+                logger.warn("[{}] Invalid binary frame length {}. Connection will be closed.", peer, length);
+                return;
+            }
+            frame = readFrame(in, frame, length);
+            deadline.busy();
+            exchange.begin(null, 4 + length, readStart);
+            ByteBuffer res = handleFrame(ByteBuffer.wrap(frame, 0, length), currentQuizQuestionHolder, peer, exchange);
+            os.write(res.array(), res.arrayOffset() + res.position(), res.remaining());
+            os.flush();
+            SockServer.completed(peer, exchange);
+            if (frame.length > MAX_KEPT_FRAME) {
+                frame = new byte[INITIAL_FRAME_SIZE]; // do not keep the buffer of one huge frame
+            }
+        }
+    }
+
+    /**
+     * Reads a frame of the given length to the start of buf. The buffer grows with the bytes that
+     * actually arrived, so a forged length alone cannot make the server allocate.
+     *
+     * @return buf, or the larger buffer holding the frame
+     */
+    private static byte[] readFrame(DataInputStream in, byte[] buf, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            if (n == buf.length) {
+                buf = Arrays.copyOf(buf, (int) Math.min(length, 2L * buf.length));
+            }
+            int r = in.read(buf, n, Math.min(length, buf.length) - n);
+            if (r < 0) {
+                throw new EOFException("connection closed inside a frame");
+            }
+            n += r;
+        }
+        return buf;
+    }
+
+    /**
+     * Same as {@link #handleFrame(ByteBuffer, SockServer.Question[], SocketAddress)}, also noting
+     * the request type, status, response size and handler timing in the exchange.
+     */
+    static ByteBuffer handleFrame(ByteBuffer frame, SockServer.Question[] currentQuizQuestionHolder, SocketAddress peer,
+                                  Exchange exchange) {
+        byte opcode = frame.get(frame.position());
+        exchange.type = opcode > 0 && opcode < OPCODE_NAMES.length ? OPCODE_NAMES[opcode] : Exchange.UNKNOWN_TYPE;
+        exchange.handlerStartNanos = System.nanoTime();
+        if (!SockServer.admission.tryAcquire()) {
+            return busy(opcode, exchange);
+        }
+        ByteBuffer res;
+        try {
+            res = handleFrame(frame, currentQuizQuestionHolder, peer);
+        } finally {
+            SockServer.admission.release(System.nanoTime() - exchange.startNanos);
+        }
+        exchange.handledNanos = System.nanoTime();
+        exchange.ok = res.get(res.position() + 5) == STATUS_OK;
+        exchange.bytesOut = res.remaining();
+        return res;
+    }
+
+    /**
+     * Same as {@link #handleFrame(ByteBuffer, SockServer.Question[], SocketAddress, Exchange)},
+     * without waiting for the question log: a QUIZ_ADD frame is copied and executed in the
+     * quizgame service's executor, which passes the response to done.
+     *
+     * @return the response frame, or null if it will be passed to done
+     */
+    static ByteBuffer handleFrame(ByteBuffer frame, SockServer.Question[] currentQuizQuestionHolder, SocketAddress peer,
+                                  Exchange exchange, Consumer<ByteBuffer> done) {
+        byte opcode = frame.get(frame.position());
+        Executor executor = opcode == QUIZ_ADD ? SockServer.services.executor("quizgame") : null;
+        if (executor == null) {
+            return handleFrame(frame, currentQuizQuestionHolder, peer, exchange);
+        }
+        ByteBuffer request = ByteBuffer.allocate(frame.remaining()).put(frame.duplicate()).flip();
+        try {
+            executor.execute(() -> {
+                ByteBuffer res;
+                try {
+                    res = handleFrame(request, currentQuizQuestionHolder, peer, exchange);
+                } catch (RuntimeException | Error e) {
+                    logger.error("[{}] Exception processing binary request: {}", peer, e.getMessage(), e);
+                    res = new Response(opcode).error("Internal server error while processing request.").finish();
+                }
+                done.accept(res); // the caller is waiting for an answer either way
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.type = OPCODE_NAMES[opcode];
+            exchange.handlerStartNanos = System.nanoTime();
+            return busy(opcode, exchange);
+        }
+        return null;
+    }
+
+    private static ByteBuffer busy(byte opcode, Exchange exchange) {
+        ByteBuffer busy = opcode > 0 && opcode < BUSY_FRAMES.length
+                ? BUSY_FRAMES[opcode].duplicate() : new Response(opcode).error("busy").finish();
+        exchange.handledNanos = exchange.handlerStartNanos;
+        exchange.bytesOut = busy.remaining();
+        return busy;
+    }
+
+    /**
+     * Executes one request frame.
+     *
+     * @param frame the frame without its length prefix, starting at the opcode
+     * @return the complete response frame, including the length prefix, ready to be written
+     */
+    static ByteBuffer handleFrame(ByteBuffer frame, SockServer.Question[] currentQuizQuestionHolder, SocketAddress peer) {
+        byte opcode = frame.get();
+        Response res = new Response(opcode);
+        try {
+            switch (opcode) {
+                case ECHO:
+                    res.ok().putString(SockServer.echoText(getString(frame)));
+                    break;
+                case ADD:
+                    res.ok().putInt(frame.getInt() + frame.getInt());
+                    break;
+                case ADDMANY: {
+                    int count = getCount(frame, 4);
+                    long result = 0; // a frame holds too few ints to overflow a long
+                    for (int i = 0; i < count; i++) {
+                        result += frame.getInt();
+                    }
+                    res.ok().putLong(result);
+                    break;
+                }
+                case CONCAT: {
+                    String first = getString(frame);
+                    res.ok().putString(first + getString(frame));
+                    break;
+                }
+                case CONCAT_MANY: {
+                    int count = getCount(frame, 4);
+                    StringBuilder concatenated = new StringBuilder();
+                    for (int i = 0; i < count; i++) {
+                        concatenated.append(getString(frame));
+                    }
+                    res.ok().putString(concatenated.toString());
+                    break;
+                }
+                case QUIZ_ADD: {
+                    String question = getString(frame);
+                    Boolean added = SockServer.addQuestion(question, getString(frame));
+                    if (added == null) {
+                        res.error("Could not store the question, please try again.");
+                    } else if (!added) {
+                        res.error(SockServer.DUPLICATE_QUESTION);
+                    } else {
+                        res.ok();
+                    }
+                    break;
+                }
+                case QUIZ_NEXT: {
+                    SockServer.Question selected = SockServer.randomQuestion();
+                    if (selected == null) {
+                        res.error("No quiz questions available.");
+                    } else {
+                        currentQuizQuestionHolder[0] = selected;
+                        res.ok().putString(selected.questionText);
+                    }
+                    break;
+                }
+                case QUIZ_ANSWER: {
+                    String answer = getString(frame);
+                    SockServer.Question current = currentQuizQuestionHolder[0];
+                    if (current == null) {
+                        res.error("No active quiz question. Please request a new question first.");
+                    } else if (SockServer.isCorrectAnswer(current, answer)) {
+                        currentQuizQuestionHolder[0] = null;
+                        res.ok().putByte((byte) 1);
+                    } else {
+                        res.ok().putByte((byte) 0).putString(current.questionText);
+                    }
+                    break;
+                }
+                case QUIZ_OPTIONS: {
+                    getString(frame); // question text is not checked
+                    int options = getCount(frame, 4);
+                    for (int i = 0; i < options; i++) {
+                        getString(frame);
+                    }
+                    int answer = frame.getInt();
+                    if (answer < 0 || answer >= options) {
+                        res.error("Answer is not in range of options");
+                    } else {
+                        res.ok().putInt(answer);
+                    }
+                    break;
+                }
+                default:
+                    res.error("Opcode " + opcode + " is not supported.");
+                    break;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            logger.warn("[{}] Malformed binary request for opcode {}", peer, opcode);
+            res = new Response(opcode).error("Malformed request frame.");
+        }
+        if (res.length() > MAX_FRAME_LENGTH) {
+            res = new Response(opcode).error("Response too large.");
+        }
+        return res.finish();
+    }
+
+    private static int getCount(ByteBuffer frame, int minElementSize) {
+        int count = frame.getInt();
+        if (count < 0 || (long) count * minElementSize > frame.remaining()) {
+            throw new IllegalArgumentException("invalid element count " + count);
+        }
+        return count;
+    }
+
+    static String getString(ByteBuffer buf) {
+        int len = getCount(buf, 1);
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Growable response frame builder.
+     */
+    static final class Response {
+        private ByteBuffer buf = ByteBuffer.allocate(64);
+
+        Response(byte opcode) {
+            buf.putInt(0); // length, patched in finish()
+            buf.put(opcode);
+        }
+
+        Response ok() {
+            buf.put(STATUS_OK);
+            return this;
+        }
+
+        Response error(String message) {
+            buf.put(STATUS_ERROR);
+            return putString(message);
+        }
+
+        Response putByte(byte b) {
+            ensure(1);
+            buf.put(b);
+            return this;
+        }
+
+        Response putInt(int v) {
+            ensure(4);
+            buf.putInt(v);
+            return this;
+        }
+
+        Response putLong(long v) {
+            ensure(8);
+            buf.putLong(v);
+            return this;
+        }
+
+        Response putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length);
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+            return this;
+        }
+
+        private void ensure(int bytes) {
+            if (buf.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+
+        /**
+         * @return the frame length so far, excluding the length prefix
+         */
+        int length() {
+            return buf.position() - 4;
+        }
+
+        ByteBuffer finish() {
+            buf.putInt(0, length());
+            buf.flip();
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Chunked response framing, which JSON clients opt into with
+ * {@code {"type":"negotiate","framing":"chunked"}} to receive responses of any size.
+ * <p>
+ * Responses written with writeUTF are limited to 65535 bytes. A chunked response is instead a
+ * sequence of chunks, each a 4 byte big-endian length followed by that many bytes of the UTF-8
+ * response text, ended by a chunk of length 0. The server encodes the response straight into
+ * chunks of at most CHUNK_SIZE bytes and hands each one to the connection as soon as it is full,
+ * so a multi-megabyte response is never held as one string or byte array; the client parses it
+ * while it arrives.
+ */
+final class ChunkedFraming {
+    static final String FRAMING_CHUNKED = "chunked";
+    static final String FRAMING_UTF = "utf";
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private ChunkedFraming() {
+    }
+
+    /**
+     * Receives the chunks of one response.
+     */
+    interface Sink {
+        /**
+         * @param chunk one or more complete chunks in read mode; the sink may keep the buffer
+         */
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    /**
+     * Writes one response as chunks. close() writes the final chunk and the end marker.
+     */
+    static final class Output extends OutputStream {
+        private static final int INITIAL_SIZE = 512;
+        private final Sink sink;
+        private byte[] buf = new byte[INITIAL_SIZE];
+        private int count = 4; // room for the length of the chunk being filled
+        private long written;
+        private boolean closed;
+
+        Output(Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                makeRoom();
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) {
+                    makeRoom();
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // Small responses fit a buffer that grows up to one chunk; after that full chunks are handed off.
+        private void makeRoom() throws IOException {
+            if (buf.length < 4 + CHUNK_SIZE) {
+                byte[] bigger = new byte[Math.min(buf.length * 2, 4 + CHUNK_SIZE)];
+                System.arraycopy(buf, 0, bigger, 0, count);
+                buf = bigger;
+            } else {
+                emit(false);
+                buf = new byte[4 + CHUNK_SIZE];
+                count = 4;
+            }
+        }
+
+        private void emit(boolean last) throws IOException {
+            int length = count - 4;
+            ByteBuffer chunk;
+            if (last) {
+                // the end marker goes into the same buffer, so a small response is one write
+                byte[] full = count + 4 <= buf.length ? buf : Arrays.copyOf(buf, count + 4);
+                chunk = ByteBuffer.wrap(full, 0, count + 4);
+                chunk.putInt(count, 0);
+            } else {
+                chunk = ByteBuffer.wrap(buf, 0, count);
+            }
+            chunk.putInt(0, length);
+            if (length == 0) {
+                chunk.position(4); // nothing left after the last full chunk, only the end marker
+            }
+            written += chunk.remaining();
+            sink.accept(chunk);
+        }
+
+        /**
+         * @return bytes handed to the sink so far, framing included
+         */
+        long written() {
+            return written;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                emit(true);
+            }
+        }
+    }
+
+    /**
+     * Reads the text of one chunked response; returns -1 after the end marker.
+     */
+    static final class Input extends InputStream {
+        private final DataInputStream in;
+        private int remaining;
+        private boolean done;
+
+        Input(DataInputStream in) {
+            this.in = in;
+        }
+
+        private boolean nextChunk() throws IOException {
+            while (remaining == 0 && !done) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_CHUNK_SIZE) {
+                    throw new StreamCorruptedException("invalid chunk length " + length);
+                }
+                remaining = length;
+                done = length == 0;
+            }
+            return !done;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            remaining--;
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("connection closed inside a chunk");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        /**
+         * Skips whatever is left of the response, up to and including the end marker.
+         */
+        void skipToEnd() throws IOException {
+            while (nextChunk()) {
+                int skipped = in.skipBytes(remaining);
+                if (skipped == 0) {
+                    in.readByte(); // throws EOFException at the end of the stream
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Reads one chunked response, parsing it as it arrives.
+     */
+    static JSONObject readJson(DataInputStream in) throws IOException {
+        Input chunks = new Input(in);
+        JSONObject res = new JSONObject(new JSONTokener(new InputStreamReader(chunks, StandardCharsets.UTF_8)));
+        chunks.skipToEnd();
+        return res;
+    }
+}
@@ -0,0 +1,292 @@
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression of one connection's messages, which JSON clients opt into with
+ * {@code {"type":"negotiate","framing":"chunked","compression":"deflate"}}.
+ * <p>
+ * Only messages of at least THRESHOLD bytes are compressed, so small requests and responses cost
+ * nothing extra. A compressed request is a string holding the Base64 of a zlib stream, told apart
+ * from a plain one because it consists of Base64 characters only and starts with 'e', the first
+ * Base64 digit of 0x78. A compressed response is the zlib stream itself, sent in chunked framing;
+ * it starts with 0x78 where a plain response starts with '{'.
+ * <p>
+ * Each connection keeps one Deflater and one Inflater and resets them per message, so their native
+ * buffers are allocated once. Bytes before and after compression and the time spent in zlib are
+ * counted per connection, logged when it closes and added to the server statistics.
+ */
+final class Compression {
+    static final String DEFLATE = "deflate";
+    static final String NONE = "none";
+    static final int THRESHOLD = Integer.getInteger("sockserver.compression.threshold", 1024);
+    static final int LEVEL = Integer.getInteger("sockserver.compression.level", Deflater.DEFAULT_COMPRESSION);
+    private static final Logger logger = LoggerFactory.getLogger(Compression.class);
+    private static final int ZLIB_HEADER = 0x78;
+    private static final char ZLIB_BASE64 = 'e'; // the top six bits of ZLIB_HEADER in Base64
+
+    private final Deflater deflater = new Deflater(LEVEL);
+    private final Inflater inflater = new Inflater();
+    private final int threshold;
+    private final byte[] pending;
+    private final byte[] buffer = new byte[8192];
+
+    // Plain and compressed sizes of the messages that were compressed, and nanoseconds spent in zlib
+    private long inPlain;
+    private long inWire;
+    private long outPlain;
+    private long outWire;
+    private long nanos;
+
+    Compression() {
+        this(THRESHOLD);
+    }
+
+    /**
+     * @param threshold size in bytes from which messages are compressed
+     */
+    Compression(int threshold) {
+        this.threshold = threshold;
+        this.pending = new byte[threshold];
+    }
+
+    /**
+     * @return whether the request text is compressed rather than plain JSON; anything else,
+     * including malformed JSON, is left to the JSON parser and its errors
+     */
+    static boolean isCompressed(String request) {
+        if (request.isEmpty() || request.charAt(0) != ZLIB_BASE64) {
+            return false;
+        }
+        int end = request.length();
+        // at most two padding characters, only at the end
+        for (int padding = 0; padding < 2 && end > 0 && request.charAt(end - 1) == '='; padding++) {
+            end--;
+        }
+        for (int i = 0; i < end; i++) {
+            char c = request.charAt(i);
+            if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '+' || c == '/')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decompresses a request; at most WireFormat.MAX_REQUEST_LENGTH bytes are inflated, so a small
+     * request cannot make the server allocate without bound.
+     *
+     * @throws DataFormatException      if the request is not a complete zlib stream or too large
+     * @throws IllegalArgumentException if the request is not Base64
+     */
+    String inflate(String request) throws DataFormatException {
+        byte[] compressed = Base64.getDecoder().decode(request);
+        long started = System.nanoTime();
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] plain = new byte[Math.max(256, compressed.length * 4)];
+        int length = 0;
+        while (!inflater.finished()) {
+            if (length == plain.length) {
+                if (length >= WireFormat.MAX_REQUEST_LENGTH) {
+                    throw new DataFormatException("request inflates to more than " + WireFormat.MAX_REQUEST_LENGTH + " bytes");
+                }
+                plain = Arrays.copyOf(plain, (int) Math.min(2L * length, WireFormat.MAX_REQUEST_LENGTH));
+            }
+            int n = inflater.inflate(plain, length, plain.length - length);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("truncated zlib stream");
+            }
+            length += n;
+        }
+        nanos += System.nanoTime() - started;
+        inPlain += length;
+        inWire += request.length();
+        return new String(plain, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compresses a request if it reaches the threshold; the client side of {@link #inflate}.
+     */
+    String deflate(String request) {
+        byte[] plain = request.getBytes(StandardCharsets.UTF_8);
+        if (plain.length < threshold) {
+            return request;
+        }
+        long started = System.nanoTime();
+        deflater.reset();
+        deflater.setInput(plain);
+        deflater.finish();
+        byte[] compressed = new byte[Math.max(64, plain.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        String encoded = Base64.getEncoder().encodeToString(Arrays.copyOf(compressed, length));
+        nanos += System.nanoTime() - started;
+        outPlain += plain.length;
+        outWire += encoded.length();
+        return encoded;
+    }
+
+    /**
+     * @return a stream for one response that writes to out, compressed if it reaches the threshold;
+     * closing it finishes the response and closes out
+     */
+    OutputStream output(OutputStream out) {
+        return new Output(out);
+    }
+
+    private final class Output extends OutputStream {
+        private final OutputStream out;
+        private int count;
+        private long plain;
+        private long wire;
+        private boolean deflating;
+        private boolean closed;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            plain += len;
+            if (!deflating) {
+                if (count + len < threshold) {
+                    System.arraycopy(b, off, pending, count, len);
+                    count += len;
+                    return;
+                }
+                deflating = true;
+                deflater.reset();
+                deflate(pending, 0, count);
+            }
+            deflate(b, off, len);
+        }
+
+        private void deflate(byte[] b, int off, int len) throws IOException {
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                drain();
+            }
+        }
+
+        // Moves what the deflater has produced to out; only the deflate call counts as zlib time.
+        private void drain() throws IOException {
+            long started = System.nanoTime();
+            int n = deflater.deflate(buffer);
+            nanos += System.nanoTime() - started;
+            if (n > 0) {
+                out.write(buffer, 0, n);
+                wire += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (deflating) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain();
+                }
+                outPlain += plain;
+                outWire += wire;
+            } else {
+                out.write(pending, 0, count);
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Reads one chunked response, compressed or not; the client side of {@link #output}.
+     */
+    JSONObject readJson(DataInputStream in) throws IOException {
+        ChunkedFraming.Input chunks = new ChunkedFraming.Input(in);
+        PushbackInputStream body = new PushbackInputStream(chunks);
+        int first = body.read();
+        if (first >= 0) {
+            body.unread(first);
+        }
+        JSONObject res;
+        if (first == ZLIB_HEADER) {
+            inflater.reset();
+            // a supplied inflater is not ended when the stream is done with it
+            InflaterInputStream inflated = new InflaterInputStream(body, inflater, buffer.length);
+            res = new JSONObject(new JSONTokener(new InputStreamReader(inflated, StandardCharsets.UTF_8)));
+            inPlain += inflater.getBytesWritten();
+            inWire += inflater.getBytesRead();
+        } else {
+            res = new JSONObject(new JSONTokener(new InputStreamReader(body, StandardCharsets.UTF_8)));
+        }
+        chunks.skipToEnd();
+        return res;
+    }
+
+    /**
+     * Releases the native zlib state.
+     */
+    void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+    /**
+     * Ends the connection's compression, logging what it saved and adding it to the statistics.
+     */
+    void finished(SocketAddress peer) {
+        end();
+        if (inWire + outWire == 0) {
+            return;
+        }
+        SockServer.stats.compressed(inPlain, inWire, outPlain, outWire, nanos);
+        logger.info("[{}] Compression: requests {} -> {} bytes, responses {} -> {} bytes (ratio {}), {} ms in zlib",
+                peer, inWire, inPlain, outPlain, outWire,
+                String.format("%.2f", ratio(inPlain + outPlain, inWire + outWire)),
+                TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * @return plain bytes per compressed byte, 0 if nothing was compressed
+     */
+    static double ratio(long plain, long wire) {
+        return wire == 0 ? 0 : (double) plain / wire;
+    }
+
+    long plainBytes() {
+        return inPlain + outPlain;
+    }
+
+    long wireBytes() {
+        return inWire + outWire;
+    }
+}
@@ -0,0 +1,169 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadlines of a server's connections, so clients that connect and go quiet, or send a request
+ * byte by byte, cannot hold a connection (and on the blocking engine a thread) forever.
+ * <p>
+ * A connection is in one phase at a time, each with its own deadline:
+ * <ul>
+ *   <li>header: from accept until the stream header or binary preface has arrived,</li>
+ *   <li>idle: between requests, from the last response until the first byte of the next request,</li>
+ *   <li>read: from the first byte of a request until the whole request has arrived,</li>
+ *   <li>busy: while the server handles a request, which has no deadline.</li>
+ * </ul>
+ * A connection whose deadline passes is closed and counted in the statistics.
+ * <p>
+ * All connections of the process share one hashed TimingWheel, so arming, pushing back and
+ * cancelling a deadline is O(1) however many connections are open; moving between phases is
+ * mostly a volatile write. Deadlines fire up to one tick (sockserver.timeout.tick milliseconds,
+ * default 100) late.
+ */
+final class ConnectionTimeouts {
+    static final String HEADER = "header";
+    static final String IDLE = "idle";
+    static final String READ = "read";
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionTimeouts.class);
+
+    // The wheel and its thread are only created once a server with deadlines starts.
+    private static final class Wheel {
+        static final TimingWheel INSTANCE = new TimingWheel(
+                TimeUnit.MILLISECONDS.toNanos(Long.getLong("sockserver.timeout.tick", 100)), 512, "timing-wheel");
+    }
+
+    private final long headerNanos;
+    private final long idleNanos;
+    private final long readNanos;
+
+    /**
+     * @param headerMillis time allowed for the stream header, 0 for no limit
+     * @param idleMillis   time allowed between requests, 0 for no limit
+     * @param readMillis   time allowed to receive one request, 0 for no limit
+     */
+    ConnectionTimeouts(long headerMillis, long idleMillis, long readMillis) {
+        if (headerMillis < 0 || idleMillis < 0 || readMillis < 0) {
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        }
+        this.headerNanos = TimeUnit.MILLISECONDS.toNanos(headerMillis);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.readNanos = TimeUnit.MILLISECONDS.toNanos(readMillis);
+    }
+
+    /**
+     * Reads sockserver.timeout.header (default 10000), sockserver.timeout.idle (default 300000)
+     * and sockserver.timeout.read (default 30000), all in milliseconds.
+     */
+    static ConnectionTimeouts fromSystemProperties() {
+        return new ConnectionTimeouts(Long.getLong("sockserver.timeout.header", 10_000),
+                Long.getLong("sockserver.timeout.idle", 300_000),
+                Long.getLong("sockserver.timeout.read", 30_000));
+    }
+
+    /**
+     * @param peer    the client address, used for logging
+     * @param onClose closes the connection; it runs on the wheel thread and must not block
+     * @return the deadline of a new connection, not armed until {@link Deadline#start()}
+     */
+    Deadline newDeadline(SocketAddress peer, Runnable onClose) {
+        return new Deadline(peer, onClose);
+    }
+
+    /**
+     * The deadline of one connection. Phase changes come from the thread serving the connection.
+     */
+    final class Deadline {
+        private static final int STARTING = 0;
+        private static final int WAITING = 1;
+        private static final int READING = 2;
+        private static final int BUSY = 3;
+        private static final int CLOSED = 4;
+
+        private final SocketAddress peer;
+        private final Runnable onClose;
+        private final TimingWheel.Timer timer;
+        private volatile int phase = STARTING;
+
+        private Deadline(SocketAddress peer, Runnable onClose) {
+            this.peer = peer;
+            this.onClose = onClose;
+            this.timer = headerNanos + idleNanos + readNanos == 0 ? null : Wheel.INSTANCE.newTimer(this::expired);
+        }
+
+        /**
+         * The connection was accepted; its header must arrive within the header timeout.
+         */
+        void start() {
+            enter(STARTING, headerNanos);
+        }
+
+        /**
+         * The header was read or a response was sent; the next request must start within the idle timeout.
+         */
+        void idle() {
+            enter(WAITING, idleNanos);
+        }
+
+        /**
+         * Bytes of a request arrived; unless a request is already being read, the whole request
+         * must arrive within the read timeout. Cheap enough to call on every read.
+         */
+        void reading() {
+            if (phase == WAITING) {
+                enter(READING, readNanos);
+            }
+        }
+
+        /**
+         * A complete request is being handled; no deadline applies until {@link #idle()}.
+         */
+        void busy() {
+            enter(BUSY, 0);
+        }
+
+        /**
+         * The connection was closed.
+         */
+        void cancel() {
+            phase = CLOSED;
+            if (timer != null) {
+                timer.cancel();
+            }
+        }
+
+        private void enter(int next, long timeoutNanos) {
+            if (timer == null || phase == CLOSED) {
+                return;
+            }
+            phase = next;
+            if (timeoutNanos == 0) {
+                timer.disarm();
+            } else {
+                timer.expireAt(System.nanoTime() + timeoutNanos);
+            }
+        }
+
+        private void expired() {
+            String kind;
+            switch (phase) {
+                case STARTING:
+                    kind = HEADER;
+                    break;
+                case WAITING:
+                    kind = IDLE;
+                    break;
+                case READING:
+                    kind = READ;
+                    break;
+                default:
+                    return; // the request completed or the connection closed meanwhile
+            }
+            phase = CLOSED;
+            SockServer.stats.connectionTimedOut(kind);
+            logger.info("[{}] Closing connection: {} timeout", peer, kind);
+            onClose.run();
+        }
+    }
+}
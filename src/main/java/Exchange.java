@@ -0,0 +1,53 @@
+/**
+ * Facts about one request/response exchange on a connection, filled in as the request moves
+ * through the server and handed to the statistics and the access log afterwards.
+ * Each connection reuses a single instance, so recording costs no allocation.
+ * <p>
+ * Timestamps are System.nanoTime values; 0 means the engine does not measure that point.
+ */
+final class Exchange {
+    static final String UNKNOWN_TYPE = "-";
+
+    String type = UNKNOWN_TYPE;
+    boolean ok;
+    String request;
+    int bytesIn;
+    int bytesOut;
+    long readStartNanos;    // first byte of the request received
+    long startNanos;        // request decoded
+    long parsedNanos;       // JSON parsed
+    long handlerStartNanos; // handler started
+    long handledNanos;      // response built
+    long endNanos;          // response written
+    // The connection's response writer while its responses are framed with writeUTF, null
+    // otherwise; services that support it write their response into it directly.
+    ResponseWriter writer;
+
+    /**
+     * Resets the exchange for the next request, which has just been decoded.
+     *
+     * @param request        the request text, kept for payload logging, may be null
+     * @param bytesIn        size of the request on the wire
+     * @param readStartNanos when the first byte of the request was received, or 0 if unknown
+     */
+    void begin(String request, int bytesIn, long readStartNanos) {
+        this.type = UNKNOWN_TYPE;
+        this.ok = false;
+        this.request = request;
+        this.bytesIn = bytesIn;
+        this.bytesOut = 0;
+        this.readStartNanos = readStartNanos;
+        this.startNanos = System.nanoTime();
+        this.parsedNanos = 0;
+        this.handlerStartNanos = 0;
+        this.handledNanos = 0;
+        this.endNanos = 0;
+    }
+
+    /**
+     * @return time from the first byte received (or the request decoded) to the response written
+     */
+    long latencyNanos() {
+        return endNanos - (readStartNanos != 0 ? readStartNanos : startNanos);
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Decides when the responses of a connection are written to its socket.
+ * <p>
+ * Flushing after every response costs a write system call, and usually a TCP segment, per
+ * response, even when the client has already sent the next requests. With the coalesce policy
+ * (the default, sockserver.flush=coalesce) a response is held back while more requests are
+ * waiting in the connection's input buffer, so the responses of a pipelined burst or of
+ * back-to-back batches go out in one write. Held responses are written as soon as
+ * <ul>
+ *   <li>no further request is buffered, i.e. before the server would wait for the client,</li>
+ *   <li>they fill sockserver.flush.bytes (default 8192), or</li>
+ *   <li>the first of them was finished sockserver.flush.budget microseconds ago (default 500);
+ *   the budget is checked whenever a response is finished.</li>
+ * </ul>
+ * sockserver.flush=immediate writes every response when it is finished, as before.
+ */
+final class FlushPolicy {
+    static final FlushPolicy IMMEDIATE = new FlushPolicy(false, 0, 8192);
+
+    private final boolean coalesce;
+    private final long budgetNanos;
+    private final int bufferSize;
+
+    /**
+     * @param coalesce     whether responses may be held back while more requests are buffered
+     * @param budgetMicros how long the first held response may wait
+     * @param bufferSize   bytes of responses held at most
+     */
+    FlushPolicy(boolean coalesce, long budgetMicros, int bufferSize) {
+        if (budgetMicros < 0 || bufferSize < 1) {
+            throw new IllegalArgumentException("Flush budget must not be negative and the buffer size must be at least 1");
+        }
+        this.coalesce = coalesce;
+        this.budgetNanos = TimeUnit.MICROSECONDS.toNanos(budgetMicros);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Reads sockserver.flush (coalesce or immediate), sockserver.flush.budget (microseconds)
+     * and sockserver.flush.bytes.
+     */
+    static FlushPolicy fromSystemProperties() {
+        String policy = System.getProperty("sockserver.flush", "coalesce");
+        if (!policy.equals("coalesce") && !policy.equals("immediate")) {
+            throw new IllegalArgumentException("sockserver.flush must be coalesce or immediate. Provided: " + policy);
+        }
+        return new FlushPolicy(policy.equals("coalesce"), Long.getLong("sockserver.flush.budget", 500),
+                Integer.getInteger("sockserver.flush.bytes", 8192));
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param moreInput  whether another request is already waiting in the input buffer
+     * @param heldNanos  when the first response now held back was finished, 0 if there is none
+     * @return true if the responses finished so far may be held back a little longer
+     */
+    boolean holds(boolean moreInput, long heldNanos) {
+        return coalesce && moreInput && (heldNanos == 0 || System.nanoTime() - heldNanos < budgetNanos);
+    }
+
+    /**
+     * @param out       the socket's output stream
+     * @param moreInput tells whether another request is already waiting in the input buffer
+     * @return a stream whose flush() ends a response and writes to out as this policy decides
+     */
+    Output output(OutputStream out, BooleanSupplier moreInput) {
+        return new Output(out, moreInput);
+    }
+
+    /**
+     * Buffers the responses of a blocking connection. Each response ends with flush(), which
+     * writes the buffered responses to the socket unless the policy holds them back.
+     */
+    final class Output extends FilterOutputStream {
+        private final BooleanSupplier moreInput;
+        private byte[] buf; // allocated by the first response
+        private int count;
+        private long heldNanos; // when the first held response was finished, 0 if none is held
+
+        private Output(OutputStream out, BooleanSupplier moreInput) {
+            super(out);
+            this.moreInput = moreInput;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buf == null) {
+                buf = new byte[bufferSize];
+            } else if (count == buf.length) {
+                writeHeld();
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= bufferSize) {
+                writeHeld();
+                out.write(b, off, len); // would not fit anyway
+                return;
+            }
+            if (buf == null) {
+                buf = new byte[bufferSize];
+            } else if (len > buf.length - count) {
+                writeHeld();
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        /**
+         * Ends a response: writes everything buffered unless the policy holds it back.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (count > 0 && holds(moreInput.getAsBoolean(), heldNanos)) {
+                if (heldNanos == 0) {
+                    heldNanos = System.nanoTime();
+                }
+                return;
+            }
+            writeHeld();
+            out.flush();
+        }
+
+        /**
+         * @return true if responses are held back
+         */
+        boolean holding() {
+            return count > 0;
+        }
+
+        /**
+         * Writes the responses held back, e.g. before the connection waits for the client.
+         */
+        void flushHeld() throws IOException {
+            writeHeld();
+            out.flush();
+        }
+
+        private void writeHeld() throws IOException {
+            if (count > 0) {
+                out.write(buf, 0, count);
+                count = 0;
+            }
+            heldNanos = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writeHeld();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free, allocation-free histogram of non-negative values (typically nanoseconds), in the
+ * style of HdrHistogram: values below 2^SUB_BITS are counted exactly, larger values fall into
+ * log-linear buckets, so every value is stored with a relative error below 1/2^(SUB_BITS-1)
+ * (about 3%). Recording is one array increment; percentiles are computed from a snapshot.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the largest value that falls into the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / HALF_COUNT - 1;
+        long sub = index - (long) shift * HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records one value; negative values are recorded as 0.
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry until max is at least value
+        }
+    }
+
+    /**
+     * Adds all values recorded by another histogram to this one.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        sum.add(other.sum.sum());
+        long otherMax = other.max();
+        long current;
+        while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+            // retry until max is at least otherMax
+        }
+    }
+
+    /**
+     * Coordinated omission correction for closed-loop measurements, as in HdrHistogram: a client
+     * stuck waiting on a slow response does not send the requests it would have sent meanwhile.
+     * For each recorded value v the copy also contains v - E, v - 2E, ... down to E, the latencies
+     * those requests would have seen.
+     *
+     * @param expectedIntervalNanos E, the expected time between requests without stalls
+     * @return a corrected copy; this histogram is unchanged
+     */
+    LatencyHistogram correctedForCoordinatedOmission(long expectedIntervalNanos) {
+        LatencyHistogram copy = new LatencyHistogram();
+        long maxValue = max();
+        for (int i = 0; i < counts.length(); i++) {
+            long n = counts.get(i);
+            if (n == 0) {
+                continue;
+            }
+            long value = Math.min(highestValue(i), maxValue);
+            copy.counts.addAndGet(i, n);
+            copy.sum.add(value * n);
+            if (expectedIntervalNanos > 0) {
+                for (long missing = value - expectedIntervalNanos; missing >= expectedIntervalNanos; missing -= expectedIntervalNanos) {
+                    copy.counts.addAndGet(index(missing), n);
+                    copy.sum.add(missing * n);
+                }
+            }
+        }
+        copy.max.set(maxValue);
+        return copy;
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Computes several percentiles from one pass over a snapshot of the counts.
+     *
+     * @param percentiles percentiles between 0 and 100, in ascending order
+     * @return for each percentile, the value below which that share of the recorded values lies
+     * (within the histogram's precision), or 0 if nothing was recorded
+     */
+    long[] percentiles(double... percentiles) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] values = new long[percentiles.length];
+        if (total == 0) {
+            return values;
+        }
+        long maxValue = max();
+        int p = 0;
+        long seen = 0;
+        for (int i = 0; i < snapshot.length && p < percentiles.length; i++) {
+            seen += snapshot[i];
+            while (p < percentiles.length && seen >= Math.max(1, (long) Math.ceil(percentiles[p] / 100.0 * total))) {
+                values[p++] = Math.min(highestValue(i), maxValue);
+            }
+        }
+        while (p < percentiles.length) {
+            values[p++] = maxValue;
+        }
+        return values;
+    }
+
+    long valueAtPercentile(double percentile) {
+        return percentiles(percentile)[0];
+    }
+}
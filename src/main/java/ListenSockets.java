@@ -0,0 +1,125 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binds the listening sockets of a server.
+ * <p>
+ * With one acceptor thread, accept() itself becomes the bottleneck when many clients reconnect at
+ * once: the accept queue fills and connects wait for SYN retransmits, which take seconds. With
+ * sockserver.acceptors greater than 1 (0 for one per core) the server binds that many sockets to
+ * the same port with SO_REUSEPORT, each with its own accept queue and acceptor thread, and the
+ * kernel spreads incoming connections over them. Where SO_REUSEPORT is not supported a single
+ * socket is bound.
+ * <p>
+ * sockserver.backlog (default 1024) sets the length of each accept queue, instead of the default
+ * of 50; the kernel caps it at net.core.somaxconn.
+ */
+final class ListenSockets {
+    static final int DEFAULT_BACKLOG = 1024;
+    private static final Logger logger = LoggerFactory.getLogger(ListenSockets.class);
+
+    private ListenSockets() {
+    }
+
+    /**
+     * @return the number of listening sockets from sockserver.acceptors, at least 1
+     */
+    static int acceptorsFromSystemProperties() {
+        int acceptors = Integer.getInteger("sockserver.acceptors", 1);
+        if (acceptors < 0) {
+            throw new IllegalArgumentException("sockserver.acceptors must not be negative. Provided: " + acceptors);
+        }
+        return acceptors == 0 ? Runtime.getRuntime().availableProcessors() : acceptors;
+    }
+
+    /**
+     * @return the accept queue length from sockserver.backlog
+     */
+    static int backlogFromSystemProperties() {
+        int backlog = Integer.getInteger("sockserver.backlog", DEFAULT_BACKLOG);
+        if (backlog < 1) {
+            throw new IllegalArgumentException("sockserver.backlog must be at least 1. Provided: " + backlog);
+        }
+        return backlog;
+    }
+
+    /**
+     * Binds count server sockets to the port, or one if SO_REUSEPORT is not available.
+     *
+     * @param port 0 for any free port, shared by all sockets
+     */
+    static List<ServerSocket> bind(int port, int count, int backlog) throws IOException {
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            sockets.add(new ServerSocket());
+            boolean reusePort = count > 1 && supported(ServerSocket.class, sockets.get(0).supportedOptions()
+                    .contains(StandardSocketOptions.SO_REUSEPORT));
+            for (int i = 0; i < (reusePort ? count : 1); i++) {
+                if (i > 0) {
+                    sockets.add(new ServerSocket());
+                }
+                ServerSocket socket = sockets.get(i);
+                if (reusePort) {
+                    socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                socket.bind(new InetSocketAddress(i == 0 ? port : sockets.get(0).getLocalPort()), backlog);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(sockets);
+            throw e;
+        }
+        return sockets;
+    }
+
+    /**
+     * Same as {@link #bind(int, int, int)} for the NIO engine.
+     */
+    static List<ServerSocketChannel> bindChannels(int port, int count, int backlog) throws IOException {
+        List<ServerSocketChannel> channels = new ArrayList<>();
+        try {
+            channels.add(ServerSocketChannel.open());
+            boolean reusePort = count > 1 && supported(ServerSocketChannel.class, channels.get(0).supportedOptions()
+                    .contains(StandardSocketOptions.SO_REUSEPORT));
+            for (int i = 0; i < (reusePort ? count : 1); i++) {
+                if (i > 0) {
+                    channels.add(ServerSocketChannel.open());
+                }
+                ServerSocketChannel channel = channels.get(i);
+                if (reusePort) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(i == 0 ? port : channels.get(0).socket().getLocalPort()), backlog);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(channels);
+            throw e;
+        }
+        return channels;
+    }
+
+    private static boolean supported(Class<?> kind, boolean reusePort) {
+        if (!reusePort) {
+            logger.warn("SO_REUSEPORT is not supported for {} on this platform, using a single acceptor", kind.getSimpleName());
+        }
+        return reusePort;
+    }
+
+    static void closeAll(List<? extends Closeable> sockets) {
+        for (Closeable socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.error("Error closing server socket: {}", e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator, started with {@code SockClient <host> <port> load [option=value...]}.
+ * Opens one connection per client, drives a weighted mix of requests over the normal wire format
+ * and reports throughput and latency percentiles.
+ * <p>
+ * With a rate, the load is open-loop: requests are scheduled at fixed intervals and latency is
+ * measured from the scheduled time, so a stalled server is charged for the requests that queued
+ * up behind it. Without a rate, every client sends its next request as soon as the previous one
+ * is answered (closed loop) and latencies are corrected for coordinated omission afterwards.
+ * <p>
+ * Options:
+ * <pre>
+ * clients=10            number of connections, each driven by its own client
+ * threads=virtual       virtual (one virtual thread per client) or platform
+ * rate=0                total requests per second, 0 for closed loop
+ * duration=10           measured seconds
+ * warmup=2              seconds before measuring starts
+ * mix=echo:20,add:40,addmany:20,concat:10,quiz:10   request weights
+ * addmanySize=100       numbers per addmany request
+ * interval=0            closed loop: expected microseconds between requests for the
+ *                       coordinated omission correction, 0 uses the median latency
+ * protocol=json         json or binary
+ * </pre>
+ */
+class LoadGenerator {
+    private static final String[] OPERATIONS = {"echo", "add", "addmany", "concat", "quiz"};
+    private static final String QUIZ_NEXT = "{\"type\":\"quizgame\",\"addQuestion\":false}";
+    private static final String QUIZ_ANSWER = "{\"type\":\"quizgame\",\"answer\":\"4\"}";
+    // Requests between stream resets, which let both ends forget the Strings sent so far.
+    private static final int RESET_INTERVAL = 1024;
+
+    private final String host;
+    private final int port;
+    private int clients = 10;
+    private String threads = WorkerPools.VIRTUAL;
+    private double rate;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private final int[] weights = {20, 40, 20, 10, 10};
+    private int addmanySize = 100;
+    private long expectedIntervalNanos;
+    private boolean binary;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong failedClients = new AtomicLong();
+    private String addmanyRequest;
+    private int[] addmanyNums;
+
+    LoadGenerator(String host, int port, String[] options) {
+        this.host = host;
+        this.port = port;
+        for (String option : options) {
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected option=value, got: " + option);
+            }
+            String value = option.substring(eq + 1);
+            switch (option.substring(0, eq)) {
+                case "clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    threads = value;
+                    break;
+                case "rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "duration":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "mix":
+                    parseMix(value);
+                    break;
+                case "addmanySize":
+                    addmanySize = Integer.parseInt(value);
+                    break;
+                case "interval":
+                    expectedIntervalNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value));
+                    break;
+                case "protocol":
+                    if (!value.equals("json") && !value.equals("binary")) {
+                        throw new IllegalArgumentException("protocol must be json or binary");
+                    }
+                    binary = value.equals("binary");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        if (clients < 1 || durationSeconds < 1 || warmupSeconds < 0 || rate < 0) {
+            throw new IllegalArgumentException("clients and duration must be positive, warmup and rate not negative");
+        }
+    }
+
+    private void parseMix(String mix) {
+        Arrays.fill(weights, 0);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":");
+            int op = Arrays.asList(OPERATIONS).indexOf(parts[0].trim());
+            if (op < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry + " (expected one of echo, add, addmany, concat, quiz with a weight)");
+            }
+            weights[op] = Integer.parseInt(parts[1].trim());
+        }
+    }
+
+    /**
+     * Runs the load and prints the report.
+     */
+    void run() throws Exception {
+        addmanyNums = new int[addmanySize];
+        JSONArray nums = new JSONArray();
+        for (int i = 0; i < addmanySize; i++) {
+            addmanyNums[i] = i % 100;
+            nums.put(String.valueOf(i % 100));
+        }
+        addmanyRequest = new JSONObject().put("type", "addmany").put("nums", nums).toString();
+
+        ExecutorService pool = WorkerPools.create(threads, clients, "load");
+        // Open every connection before the clock starts, so connection setup is not measured.
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < clients; i++) {
+                connections.add(binary ? new BinaryConnection(host, port) : new JsonConnection(host, port));
+            }
+        } catch (IOException e) {
+            System.out.println("Could not open connection " + (connections.size() + 1) + ": " + e.getMessage()
+                    + " (is the server's connection rate limit, sockserver.ratelimit.*, high enough?)");
+            for (Connection c : connections) {
+                c.close();
+            }
+            pool.shutdownNow();
+            return;
+        }
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long period = rate > 0 ? (long) (1e9 * clients / rate) : 0;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Connection connection = connections.get(i);
+            long first = start + period * i / clients; // spread the clients over one period
+            long seed = i;
+            futures.add(pool.submit(() -> drive(connection, new SplittableRandom(seed), first, period, measureStart, end)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        for (Connection c : connections) {
+            c.close();
+        }
+        report();
+    }
+
+    private void drive(Connection connection, SplittableRandom random, long first, long period,
+                       long measureStart, long end) {
+        int totalWeight = 0;
+        for (int w : weights) {
+            totalWeight += w;
+        }
+        long next = first;
+        try {
+            while (true) {
+                long intended = period > 0 ? next : Math.max(first, System.nanoTime());
+                next += period;
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (intended - end >= 0) {
+                    return;
+                }
+                int pick = random.nextInt(totalWeight);
+                int op = 0;
+                while (pick >= weights[op]) {
+                    pick -= weights[op++];
+                }
+                long sent = System.nanoTime();
+                boolean ok = connection.call(op);
+                long done = System.nanoTime();
+                if (intended - measureStart >= 0) {
+                    latency.record(done - intended);
+                    serviceTime.record(done - sent);
+                    if (!ok) {
+                        errors.increment();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failedClients.incrementAndGet();
+            System.out.println("Client stopped: " + e.getMessage());
+        }
+    }
+
+    private void report() {
+        boolean closedLoop = rate == 0;
+        long requests = latency.count();
+        System.out.printf("%s loop, %d %s clients, %s protocol%n", closedLoop ? "closed" : "open", clients, threads,
+                binary ? "binary" : "json");
+        System.out.printf("requests=%d errors=%d failedClients=%d throughput=%.0f req/s%s%n", requests, errors.sum(),
+                failedClients.get(), requests / (double) durationSeconds,
+                closedLoop ? "" : String.format(" (target %.0f req/s)", rate));
+        LatencyHistogram corrected = latency;
+        if (closedLoop) {
+            long interval = expectedIntervalNanos > 0 ? expectedIntervalNanos : latency.valueAtPercentile(50);
+            corrected = latency.correctedForCoordinatedOmission(interval);
+            System.out.printf("coordinated omission correction with an expected interval of %.1f us%n", interval / 1000.0);
+        }
+        print("latency (us)", corrected);
+        print("service time (us)", serviceTime);
+    }
+
+    private static void print(String label, LatencyHistogram histogram) {
+        long[] p = histogram.percentiles(50, 90, 99, 99.9, 99.99);
+        System.out.printf("%-18s p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f p99.99=%.1f max=%.1f%n", label,
+                p[0] / 1000.0, p[1] / 1000.0, p[2] / 1000.0, p[3] / 1000.0, p[4] / 1000.0, histogram.max() / 1000.0);
+    }
+
+    /**
+     * One client connection. Not thread-safe, each client uses its own.
+     */
+    private interface Connection extends Closeable {
+        /**
+         * Sends one request of the given operation and waits for the response.
+         *
+         * @return whether the server answered ok
+         */
+        boolean call(int op) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    private final class JsonConnection implements Connection {
+        private final Socket sock;
+        private final ObjectOutputStream os;
+        private final DataInputStream in;
+        private boolean questionPending;
+        private int sent;
+
+        JsonConnection(String host, int port) throws IOException {
+            sock = new Socket(host, port);
+            sock.setTcpNoDelay(true);
+            os = new ObjectOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            os.flush();
+            in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        }
+
+        @Override
+        public boolean call(int op) throws IOException {
+            String request;
+            switch (op) {
+                case 0:
+                    request = "{\"type\":\"echo\",\"data\":\"load test\"}";
+                    break;
+                case 1:
+                    request = "{\"type\":\"add\",\"num1\":\"12345\",\"num2\":\"67890\"}";
+                    break;
+                case 2:
+                    request = addmanyRequest;
+                    break;
+                case 3:
+                    request = "{\"type\":\"stringconcatenation\",\"string1\":\"load\",\"string2\":\"test\"}";
+                    break;
+                default:
+                    // alternate between drawing a question and answering it
+                    request = questionPending ? QUIZ_ANSWER : QUIZ_NEXT;
+                    questionPending = !questionPending;
+                    break;
+            }
+            // writeUnshared sends every request in full, as a client building its requests would;
+            // the reset keeps the server's handle table from growing for the whole run
+            os.writeUnshared(request);
+            if (++sent % RESET_INTERVAL == 0) {
+                os.reset();
+            }
+            os.flush();
+            return new JSONObject(in.readUTF()).optBoolean("ok");
+        }
+
+        @Override
+        public void close() {
+            try {
+                sock.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private final class BinaryConnection implements Connection {
+        private final BinaryClient client;
+        private boolean questionPending;
+
+        BinaryConnection(String host, int port) throws IOException {
+            client = new BinaryClient(host, port);
+        }
+
+        @Override
+        public boolean call(int op) throws IOException {
+            try {
+                switch (op) {
+                    case 0:
+                        client.echo("load test");
+                        break;
+                    case 1:
+                        client.add(12345, 67890);
+                        break;
+                    case 2:
+                        client.addMany(addmanyNums);
+                        break;
+                    case 3:
+                        client.concat("load", "test");
+                        break;
+                    default:
+                        if (questionPending) {
+                            client.answer("4");
+                        } else {
+                            client.nextQuestion();
+                        }
+                        questionPending = !questionPending;
+                        break;
+                }
+                return true;
+            } catch (BinaryClient.ServerException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                client.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
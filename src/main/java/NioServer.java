@@ -0,0 +1,738 @@
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StreamCorruptedException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking server engine. Acceptors hand connections round-robin to a small set of event
+ * loops, each multiplexing its connections over a single Selector. With several acceptors (see
+ * ListenSockets) each one listens on its own socket and feeds its own share of the loops.
+ * Speaks the same wire formats as SockServer.handleClient (serialized JSON strings or the
+ * BinaryProtocol frames) and dispatches through the same handlers, so both engines behave
+ * identically for clients.
+ * <p>
+ * Event loops never wait for a request: one for a service with its own executor (see
+ * ServiceRegistry) is handed over, its connection stops reading, and the response comes back
+ * through the loop's task queue to be sent before the connection reads on.
+ * <p>
+ * A connection also stops reading while more than a few flush buffers of its responses wait for
+ * a client that does not read them, and reads on once they are written, as TCP flow control
+ * limits the blocking engine. Its read buffer grows up to one request of the largest size
+ * allowed.
+ */
+class NioServer {
+    private static final Logger logger = LoggerFactory.getLogger(NioServer.class);
+    private static final byte[] JAVA_MAGIC_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // Room for the largest serialized String or binary frame accepted, with its header.
+    private static final int MAX_BUFFER_SIZE = Math.max((int) WireFormat.MAX_REQUEST_LENGTH, BinaryProtocol.MAX_FRAME_LENGTH) + 16;
+    // Response bytes, in flush buffers, a connection may have waiting before it stops reading.
+    private static final int MAX_PENDING_BUFFERS = 4;
+
+    private final SockServer owner;
+    private final int port;
+    private final int acceptorCount;
+    private final int backlog;
+    private final EventLoop[] loops;
+    private List<ServerSocketChannel> servers;
+    private final List<Thread> acceptors = new ArrayList<>();
+    private volatile boolean stopping;
+
+    /**
+     * @param owner         the server whose rate limiter and timeouts apply
+     * @param port          port to listen on, 0 for any free port
+     * @param loopCount     number of event loop threads, usually the number of cores
+     * @param acceptorCount number of listening sockets and acceptor threads
+     * @param backlog       accept queue length of each listening socket
+     */
+    NioServer(SockServer owner, int port, int loopCount, int acceptorCount, int backlog) {
+        this.owner = owner;
+        this.port = port;
+        this.acceptorCount = acceptorCount;
+        this.backlog = backlog;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    /**
+     * Binds the port and starts the event loops and the acceptor threads.
+     */
+    void start() throws IOException {
+        servers = ListenSockets.bindChannels(port, acceptorCount, backlog);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open(), owner.timeouts(), owner.flushPolicy());
+            loops[i].thread = new Thread(loops[i], "nio-loop-" + (i + 1));
+            loops[i].thread.start();
+        }
+        int count = servers.size();
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel server = servers.get(i);
+            EventLoop[] own = loopsOf(i, count);
+            acceptors.add(new Thread(() -> acceptLoop(server, own),
+                    "nio-acceptor-" + getPort() + (count == 1 ? "" : "-" + (i + 1))));
+        }
+        acceptors.forEach(Thread::start);
+        logger.info("NIO server started on port {} with {} event loops, {} acceptors, backlog {}",
+                getPort(), loops.length, count, backlog);
+    }
+
+    // Acceptor i of count feeds loops i, i + count, ...; with more acceptors than loops they share.
+    private EventLoop[] loopsOf(int acceptor, int count) {
+        if (count >= loops.length) {
+            return new EventLoop[]{loops[acceptor % loops.length]};
+        }
+        List<EventLoop> own = new ArrayList<>();
+        for (int i = acceptor; i < loops.length; i += count) {
+            own.add(loops[i]);
+        }
+        return own.toArray(new EventLoop[0]);
+    }
+
+    int getPort() {
+        return servers.get(0).socket().getLocalPort();
+    }
+
+    /**
+     * Accepts connections on the calling thread until the server is stopped.
+     */
+    private void acceptLoop(ServerSocketChannel server, EventLoop[] loops) {
+        int next = 0;
+        while (!stopping) {
+            try {
+                SocketChannel channel = server.accept(); // blocking wait
+                if (owner.isRateLimited(((InetSocketAddress) channel.getRemoteAddress()).getAddress())) {
+                    channel.close();
+                    continue;
+                }
+                if (!SockServer.admission.tryOpenConnection()) {
+                    logger.warn("Connection limit reached, refusing client {}", channel.getRemoteAddress());
+                    channel.close();
+                    continue;
+                }
+                logger.info("Client connected: {}", channel.getRemoteAddress());
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (stopping || !server.isOpen()) {
+                    break;
+                }
+                logger.error("Error accepting client connection: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting, lets the event loops close each connection once it has no partly read
+     * request and no unsent response, and closes the remaining ones at the deadline.
+     *
+     * @param deadline System.nanoTime by which everything must be closed
+     * @return true if every connection drained before the deadline
+     */
+    boolean stop(long deadline) throws InterruptedException {
+        stopping = true;
+        ListenSockets.closeAll(servers); // unblocks accept
+        for (Thread acceptor : acceptors) {
+            acceptor.join();
+        }
+        for (EventLoop loop : loops) {
+            loop.state = EventLoop.DRAINING;
+            loop.selector.wakeup();
+        }
+        boolean drained = true;
+        for (EventLoop loop : loops) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                loop.thread.join(Math.max(1, remaining / 1_000_000));
+            }
+            if (loop.thread.isAlive()) {
+                drained = false;
+                loop.state = EventLoop.CLOSING;
+                loop.selector.wakeup();
+                loop.thread.join();
+            }
+        }
+        if (!drained) {
+            logger.warn("Closed connections on port {} that were still busy at shutdown", getPort());
+        }
+        logger.info("Server on port {} stopped", getPort());
+        return drained;
+    }
+
+    /**
+     * A single selector thread serving many connections. Connections whose deadline passed are
+     * handed back by the timing wheel and closed on this thread, and responses computed by other
+     * threads are handed back as tasks.
+     */
+    private static final class EventLoop implements Runnable {
+        static final int RUNNING = 0;
+        static final int DRAINING = 1;
+        static final int CLOSING = 2;
+        private static final long DRAIN_POLL_MILLIS = 10;
+
+        private final Selector selector;
+        private final ConnectionTimeouts timeouts;
+        private final FlushPolicy flushPolicy;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> expired = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private Thread thread;
+        private volatile int state = RUNNING;
+
+        EventLoop(Selector selector, ConnectionTimeouts timeouts, FlushPolicy flushPolicy) {
+            this.selector = selector;
+            this.timeouts = timeouts;
+            this.flushPolicy = flushPolicy;
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void expire(Connection conn) {
+            expired.add(conn);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs the task on this loop's thread; callable from any thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select(state == RUNNING ? 0 : DRAIN_POLL_MILLIS);
+                    registerPending();
+                    closeExpired();
+                    runTasks();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                conn.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.onWritable();
+                            }
+                        } catch (Exception e) {
+                            logger.warn("[{}] Closing connection: {}", conn.peer, e.getMessage());
+                            conn.close();
+                        }
+                    }
+                    if (state != RUNNING && closeIdle()) {
+                        break;
+                    }
+                }
+            } catch (ClosedSelectorException ignore) {
+                // server shut down
+            } catch (IOException e) {
+                logger.error("Event loop failed: {}", e.getMessage(), e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.error("Error closing selector: {}", e.getMessage(), e);
+                }
+            }
+        }
+
+        /**
+         * While stopping: closes connections that are idle, or all of them once closing.
+         *
+         * @return true when no connection is left
+         */
+        private boolean closeIdle() {
+            boolean empty = true;
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (!key.isValid() || conn == null) {
+                    continue;
+                }
+                if (state == CLOSING || conn.idle()) {
+                    conn.close();
+                } else {
+                    empty = false;
+                }
+            }
+            return empty;
+        }
+
+        private void closeExpired() {
+            Connection conn;
+            while ((conn = expired.poll()) != null) {
+                conn.close();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    if (state != RUNNING) {
+                        channel.close();
+                        SockServer.admission.connectionClosed();
+                        continue;
+                    }
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(channel, key, this));
+                } catch (IOException e) {
+                    logger.error("Error registering client connection: {}", e.getMessage(), e);
+                    SockServer.admission.connectionClosed();
+                    try {
+                        channel.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection state: read buffer, decoder, pending writes and the quiz session.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final SocketAddress peer;
+        private final WireFormat.StringDecoder decoder = new WireFormat.StringDecoder();
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private final SockServer.Question[] currentQuizQuestionHolder = new SockServer.Question[1];
+        private final Exchange exchange = new Exchange();
+        private final ResponseWriter writer = new ResponseWriter(); // reused for every writeUTF response
+        private final ConnectionTimeouts.Deadline deadline;
+        private final FlushPolicy flushPolicy;
+        private final EventLoop loop;
+        // Hand the response of a request computed on another thread to onResult on the loop.
+        private final Consumer<JSONObject> resultToLoop;
+        private final Consumer<ByteBuffer> frameToLoop;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        // Responses held back while more requests wait in the read buffer, allocated when first needed.
+        private ByteBuffer held;
+        private long heldNanos; // when the first held response was finished, 0 if none is held
+        private boolean headerChecked;
+        private boolean binary;
+        // Set by a negotiate request: JSON responses are chunked instead of written with writeUTF.
+        private boolean chunked;
+        private Compression compression; // null unless negotiated
+        // When the first unprocessed byte in the read buffer arrived, 0 if there is none.
+        private long readStartNanos;
+        // A request is with its service's executor; reading stops until its response is sent.
+        private boolean waiting;
+        private JSONObject deferred; // that response, once it is back on the loop and not sent yet
+        private ByteBuffer deferredFrame; // likewise for a binary frame
+        private boolean closing; // nothing more is read, the connection closes once outbound is written
+        private long queuedBytes; // not yet written from outbound
+        private boolean paused; // reading stopped until outbound is written
+
+        Connection(SocketChannel channel, SelectionKey key, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            this.peer = channel.getRemoteAddress();
+            this.deadline = loop.timeouts.newDeadline(peer, () -> loop.expire(this));
+            this.flushPolicy = loop.flushPolicy;
+            this.loop = loop;
+            this.resultToLoop = result -> loop.execute(() -> {
+                try {
+                    onResult(result, null);
+                } catch (Exception e) {
+                    logger.warn("[{}] Closing connection: {}", peer, e.getMessage());
+                    close();
+                }
+            });
+            this.frameToLoop = frame -> loop.execute(() -> {
+                try {
+                    onResult(null, frame);
+                } catch (Exception e) {
+                    logger.warn("[{}] Closing connection: {}", peer, e.getMessage());
+                    close();
+                }
+            });
+            exchange.writer = writer;
+            SockServer.stats.connectionOpened();
+            deadline.start();
+        }
+
+        void onReadable() throws IOException {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_BUFFER_SIZE) {
+                    logger.warn("[{}] Request larger than {} bytes. Connection will be closed.", peer, MAX_BUFFER_SIZE);
+                    close();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(2L * in.capacity(), MAX_BUFFER_SIZE));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                logger.info("Closed connection to client {}", peer);
+                close();
+                return;
+            }
+            long now = System.nanoTime();
+            if (readStartNanos == 0) {
+                readStartNanos = now;
+            }
+            serve(now);
+        }
+
+        /**
+         * Called on the loop with the response of a request that ran in its service's executor:
+         * sends it, then serves the requests that arrived meanwhile and reads on.
+         *
+         * @param res   the JSON response, null for a binary one
+         * @param frame the binary response frame, null for a JSON one
+         */
+        void onResult(JSONObject res, ByteBuffer frame) throws IOException {
+            if (!channel.isOpen()) {
+                return; // closed by a deadline or shutdown meanwhile
+            }
+            waiting = false;
+            deferred = res;
+            deferredFrame = frame;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            serve(System.nanoTime());
+        }
+
+        /**
+         * Answers the complete requests in the read buffer, up to one that is handed to its
+         * service's executor.
+         *
+         * @param now when the last bytes were read
+         */
+        private void serve(long now) throws IOException {
+            in.flip();
+            boolean answered = false;
+            try {
+                if (!headerChecked) {
+                    if (in.remaining() < JAVA_MAGIC_HEADER.length) {
+                        return;
+                    }
+                    if (startsWith(in, BinaryProtocol.PREFACE)) {
+                        binary = true;
+                    } else if (!startsWith(in, JAVA_MAGIC_HEADER)) {
+                        logger.warn("[{}] Received invalid magic header. Connection will be closed.", peer);
+                        close();
+                        return;
+                    }
+                    in.position(in.position() + JAVA_MAGIC_HEADER.length);
+                    headerChecked = true;
+                }
+                if (binary) {
+                    if (deferredFrame != null) {
+                        ByteBuffer res = deferredFrame;
+                        deferredFrame = null;
+                        send(res);
+                        SockServer.completed(peer, exchange);
+                        answered = true;
+                    }
+                    readFrames(now);
+                    flushHeld();
+                    pauseIfBacklogged();
+                    return;
+                }
+                if (deferred != null) {
+                    JSONObject res = deferred;
+                    deferred = null;
+                    answer(res);
+                    answered = true;
+                }
+                String input;
+                while (key.isValid() && !backlogged() && (input = decoder.next(in)) != null) {
+                    logger.debug("[{}] Received request: {}", peer, input);
+                    exchange.begin(input, input.length(), readStartNanos);
+                    JSONObject res = SockServer.handleRequest(input, compression, currentQuizQuestionHolder, peer, exchange,
+                            resultToLoop);
+                    // Whatever follows arrived with this read at the latest.
+                    readStartNanos = now;
+                    if (res == ServiceRegistry.DEFERRED) {
+                        waiting = true;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        break;
+                    }
+                    answer(res);
+                }
+                flushHeld(); // every complete request of this read has been answered, or one is computing
+                pauseIfBacklogged();
+            } catch (StreamCorruptedException sce) {
+                logger.warn("[{}] Stream corrupted: {}", peer, sce.getMessage());
+                flushHeld(); // the requests before the corrupted one were answered
+                closeWhenWritten();
+            } finally {
+                if (waiting) {
+                    deadline.busy(); // no deadline while a service computes the response
+                } else if (answered || in.position() > 0) {
+                    deadline.idle(); // the header or whole requests were consumed
+                }
+                if (!in.hasRemaining()) {
+                    readStartNanos = 0;
+                } else if (!waiting) {
+                    deadline.reading(); // keeps the deadline of a request that was already partly read
+                }
+                in.compact();
+            }
+        }
+
+        // Sends the response of the exchange's request and applies a negotiate request to the connection.
+        private void answer(JSONObject res) throws IOException {
+            send(res);
+            chunked = SockServer.framingAfter(exchange, res, chunked);
+            exchange.writer = chunked ? null : writer;
+            compression = SockServer.compressionAfter(exchange, res, compression, peer);
+            SockServer.completed(peer, exchange);
+        }
+
+        private static boolean startsWith(ByteBuffer buf, byte[] prefix) {
+            for (int i = 0; i < prefix.length; i++) {
+                if (buf.get(buf.position() + i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Executes the complete binary frames in the read buffer, up to one that is handed to the
+         * quizgame service's executor.
+         */
+        private void readFrames(long now) throws IOException {
+            while (key.isValid() && !backlogged() && in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 1 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    logger.warn("[{}] Invalid binary frame length {}. Connection will be closed.", peer, length);
+                    close();
+                    return;
+                }
+                if (in.remaining() < 4 + length) {
+                    return;
+                }
+                int frameStart = in.position() + 4;
+                ByteBuffer frame = in.duplicate();
+                frame.position(frameStart).limit(frameStart + length);
+                in.position(frameStart + length);
+                exchange.begin(null, 4 + length, readStartNanos);
+                ByteBuffer res = BinaryProtocol.handleFrame(frame.slice(), currentQuizQuestionHolder, peer, exchange, frameToLoop);
+                readStartNanos = now;
+                if (res == null) {
+                    waiting = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+                send(res);
+                SockServer.completed(peer, exchange);
+            }
+        }
+
+        private void send(JSONObject res) throws IOException {
+            if (res == AdmissionControl.BUSY) {
+                ByteBuffer busy = AdmissionControl.busy(chunked);
+                exchange.bytesOut = busy.remaining();
+                send(busy);
+                return;
+            }
+            if (chunked) {
+                ChunkedFraming.Output out = new ChunkedFraming.Output(this::send);
+                OutputStream body = compression != null ? compression.output(out) : out;
+                try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+                    res.write(writer);
+                }
+                exchange.bytesOut = (int) Math.min(out.written(), Integer.MAX_VALUE);
+                logger.debug("Sent chunked response of {} bytes", out.written());
+                return;
+            }
+            if (res != ResponseWriter.WRITTEN) {
+                writer.write(res);
+            }
+            if (!writer.fits()) {
+                logger.warn("[{}] Response of {} bytes does not fit writeUTF, sending an error instead", peer, writer.length());
+                writer.tooLarge();
+            }
+            ByteBuffer buf = writer.buffer();
+            exchange.bytesOut = buf.remaining();
+            send(buf, true); // the writer's buffer is reused by the next response
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sent response: {}", writer.text());
+            }
+        }
+
+        private void send(ByteBuffer buf) throws IOException {
+            send(buf, false);
+        }
+
+        /**
+         * Sends buf, or holds it back while the flush policy allows it and more requests wait in
+         * the read buffer.
+         *
+         * @param reused whether buf is overwritten later, so a copy must be queued
+         */
+        private void send(ByteBuffer buf, boolean reused) throws IOException {
+            if (outbound.isEmpty() && flushPolicy.holds(in.hasRemaining(), heldNanos)) {
+                if (held == null) {
+                    held = ByteBuffer.allocate(flushPolicy.bufferSize());
+                }
+                if (buf.remaining() <= held.remaining()) {
+                    held.put(buf);
+                    if (heldNanos == 0) {
+                        heldNanos = System.nanoTime();
+                    }
+                    return;
+                }
+            }
+            flushHeld();
+            if (outbound.isEmpty()) {
+                channel.write(buf);
+            }
+            if (buf.hasRemaining()) {
+                queue(reused ? copy(buf) : buf);
+            }
+        }
+
+        /**
+         * Writes the responses held back.
+         */
+        private void flushHeld() throws IOException {
+            if (held == null || held.position() == 0 || !channel.isOpen()) {
+                return;
+            }
+            held.flip();
+            if (outbound.isEmpty()) {
+                channel.write(held);
+            }
+            if (held.hasRemaining()) {
+                queue(copy(held));
+            }
+            held.clear();
+            heldNanos = 0;
+        }
+
+        private static ByteBuffer copy(ByteBuffer buf) {
+            ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+            copy.put(buf).flip();
+            return copy;
+        }
+
+        private void queue(ByteBuffer buf) {
+            outbound.add(buf);
+            queuedBytes += buf.remaining();
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * @return true if more responses wait to be written than the client should have outstanding
+         */
+        private boolean backlogged() {
+            int heldBytes = held == null ? 0 : held.position();
+            return queuedBytes + heldBytes > (long) MAX_PENDING_BUFFERS * flushPolicy.bufferSize();
+        }
+
+        // Stops reading from a client that does not read its responses; onWritable reads on.
+        private void pauseIfBacklogged() {
+            if (key.isValid() && backlogged()) {
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * @return true if no request is partly read, being computed or waiting to be sent
+         */
+        boolean idle() {
+            return !waiting && outbound.isEmpty() && in.position() == 0;
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer buf;
+            while ((buf = outbound.peek()) != null) {
+                queuedBytes -= channel.write(buf);
+                if (buf.hasRemaining()) {
+                    return;
+                }
+                outbound.poll();
+            }
+            if (closing) {
+                close();
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (paused) {
+                paused = false;
+                if (!waiting) { // otherwise onResult reads on
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    serve(System.nanoTime()); // the requests that arrived before reading stopped
+                }
+            }
+        }
+
+        /**
+         * Stops reading and closes the connection once the responses already queued are written.
+         */
+        private void closeWhenWritten() {
+            if (outbound.isEmpty() || !channel.isOpen()) {
+                close();
+                return;
+            }
+            closing = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            deadline.cancel();
+            SockServer.stats.connectionClosed();
+            SockServer.admission.connectionClosed();
+            if (compression != null) {
+                compression.finished(peer);
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Error closing client socket: {}", e.getMessage(), e);
+            }
+        }
+    }
+}
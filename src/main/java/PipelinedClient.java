@@ -0,0 +1,148 @@
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Client that keeps up to a fixed number of requests in flight on one connection.
+ * Each request gets an "id", which the server copies into the response; a reader thread
+ * completes the matching future. Speaks the same wire format as SockClient.
+ * <p>
+ * Running main compares throughput at several pipeline depths:
+ * {@code PipelinedClient <host> <port> [requests] [depth...]}
+ */
+class PipelinedClient implements Closeable {
+    // Requests between stream resets, which let both ends forget the Strings sent so far.
+    private static final int RESET_INTERVAL = 1024;
+
+    private final Socket sock;
+    private final ObjectOutputStream os;
+    private final DataInputStream in;
+    private final Semaphore window;
+    private final Map<Long, CompletableFuture<JSONObject>> inFlight = new HashMap<>();
+    // ids in send order, used for responses that carry no id (e.g. "req not JSON")
+    private final ArrayDeque<Long> order = new ArrayDeque<>();
+    private final Thread reader;
+    private long nextId = 1;
+    private volatile IOException failure;
+
+    /**
+     * @param depth maximum number of requests in flight
+     */
+    PipelinedClient(String host, int port, int depth) throws IOException {
+        sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        os = new ObjectOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+        os.flush(); // stream header
+        in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        window = new Semaphore(depth);
+        reader = new Thread(this::readResponses, "pipeline-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request, blocking while the pipeline is full.
+     *
+     * @param req the request; an "id" field is added
+     * @return future completed with the response
+     */
+    CompletableFuture<JSONObject> send(JSONObject req) throws IOException {
+        window.acquireUninterruptibly();
+        if (failure != null) {
+            throw failure;
+        }
+        CompletableFuture<JSONObject> future = new CompletableFuture<>();
+        synchronized (this) {
+            long id = nextId++;
+            req.put("id", id);
+            inFlight.put(id, future);
+            order.add(id);
+            os.writeUnshared(req.toString());
+            if (id % RESET_INTERVAL == 0) {
+                os.reset(); // otherwise the server keeps every request String of the connection
+            }
+            os.flush();
+        }
+        return future;
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                JSONObject res = new JSONObject(in.readUTF());
+                CompletableFuture<JSONObject> future;
+                synchronized (this) {
+                    Long id = res.has("id") ? res.getLong("id") : order.peek();
+                    order.remove(id);
+                    future = inFlight.remove(id);
+                }
+                window.release();
+                if (future != null) {
+                    future.complete(res);
+                }
+            }
+        } catch (Exception e) {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            synchronized (this) {
+                for (CompletableFuture<JSONObject> future : inFlight.values()) {
+                    future.completeExceptionally(e);
+                }
+                inFlight.clear();
+            }
+            window.release(Integer.MAX_VALUE / 2); // wake up blocked senders
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sock.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Expected arguments: <host(String)> <port(int)> [requests(int)] [depth(int)...]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int[] depths = {1, 8, 64};
+        if (args.length > 3) {
+            depths = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++) {
+                depths[i - 3] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int depth : depths) {
+            try (PipelinedClient client = new PipelinedClient(host, port, depth)) {
+                long start = System.nanoTime();
+                CompletableFuture<JSONObject> last = null;
+                for (int i = 0; i < requests; i++) {
+                    JSONObject req = new JSONObject();
+                    req.put("type", "add");
+                    req.put("num1", String.valueOf(i));
+                    req.put("num2", "1");
+                    last = client.send(req);
+                }
+                if (last != null) {
+                    last.get();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("depth=%d requests=%d time=%.3fs throughput=%.0f req/s%n",
+                        depth, requests, seconds, requests / seconds);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a question file into the quiz, started with
+ * {@code SockClient <host> <port> import <file> [batch=500] [window=4]}.
+ * <p>
+ * The file has one question per line, the question and its answer separated by a tab; empty
+ * lines and lines starting with # are skipped. The file is read as it is sent, so its size does
+ * not matter. Questions go out in addQuestions requests of batch questions each, with up to window
+ * requests in flight on one connection so the server never waits for the next batch.
+ */
+class QuestionImporter {
+    private final String host;
+    private final int port;
+    private final String file;
+    private int batchSize = 500;
+    private int window = 4;
+
+    private long added;
+    private long duplicates;
+    private long invalid;
+    private long failedBatches;
+
+    QuestionImporter(String host, int port, String file, String[] options) {
+        this.host = host;
+        this.port = port;
+        this.file = file;
+        for (String option : options) {
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected option=value, got: " + option);
+            }
+            String value = option.substring(eq + 1);
+            switch (option.substring(0, eq)) {
+                case "batch":
+                    batchSize = Integer.parseInt(value);
+                    break;
+                case "window":
+                    window = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        if (batchSize < 1 || batchSize > SockServer.MAX_QUESTIONS_PER_REQUEST || window < 1) {
+            throw new IllegalArgumentException("batch must be between 1 and " + SockServer.MAX_QUESTIONS_PER_REQUEST
+                    + ", window positive");
+        }
+    }
+
+    /**
+     * Imports the file and prints the totals.
+     */
+    void run() throws IOException {
+        long started = System.nanoTime();
+        long lineNumber = 0;
+        // first line number of each batch in flight, to report where rejected questions are
+        ArrayDeque<Long> inFlight = new ArrayDeque<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+             Socket sock = new Socket(host, port)) {
+            ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            JSONArray batch = new JSONArray();
+            long batchStart = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    System.out.println("Line " + lineNumber + ": no tab between question and answer, skipped");
+                    invalid++;
+                    continue;
+                }
+                if (batch.length() == 0) {
+                    batchStart = lineNumber;
+                }
+                batch.put(new JSONObject().put("question", line.substring(0, tab)).put("answer", line.substring(tab + 1)));
+                if (batch.length() == batchSize) {
+                    if (inFlight.size() == window) {
+                        readResult(in, inFlight.remove());
+                    }
+                    send(os, batch);
+                    inFlight.add(batchStart);
+                    batch = new JSONArray();
+                }
+            }
+            if (batch.length() > 0) {
+                send(os, batch);
+                inFlight.add(batchStart);
+            }
+            while (!inFlight.isEmpty()) {
+                readResult(in, inFlight.remove());
+            }
+        }
+        double seconds = (System.nanoTime() - started) / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf("added=%d duplicates=%d invalid=%d failedBatches=%d in %.1f s (%.0f questions/s)%n",
+                added, duplicates, invalid, failedBatches, seconds, (added + duplicates) / seconds);
+    }
+
+    private static void send(ObjectOutputStream os, JSONArray batch) throws IOException {
+        JSONObject request = new JSONObject().put("type", "quizgame").put("addQuestions", batch);
+        os.writeObject(request.toString());
+        // Both ends of an object stream keep every String sent until a reset, the server included.
+        os.reset();
+        os.flush();
+    }
+
+    private void readResult(DataInputStream in, long batchStart) throws IOException {
+        JSONObject response = new JSONObject(in.readUTF());
+        if (!response.optBoolean("ok")) {
+            failedBatches++;
+            System.out.println("Batch starting at line " + batchStart + " failed: " + response.optString("message"));
+            return;
+        }
+        added += response.getInt("added");
+        duplicates += response.getInt("duplicates");
+        invalid += response.getInt("invalid");
+    }
+}
@@ -0,0 +1,257 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable, append-only log of the quiz questions in a {@link QuestionStore}, kept in a
+ * memory-mapped file.
+ * <p>
+ * The file starts with a 16 byte header (magic, version) followed by records of the form
+ * {@code [int length][int crc32c][int questionLength][question utf-8][answer utf-8]}, where length
+ * and the checksum cover everything after the checksum. The mapping is grown ahead of the writes,
+ * so the unused tail is zeros and a zero length marks the end of the log.
+ * <p>
+ * Adding a question writes its record into the mapping and returns once the record is on disk.
+ * Concurrent adds share their fsyncs (group commit): the first writer to wait forces everything
+ * written so far while the others wait for it, so a burst of adds costs one force rather than one
+ * each. Recovery walks the record headers in the mapping, verifies the checksums and replays the
+ * records into the store; a record torn by a crash ends the log and is wiped.
+ * <p>
+ * Only questions the store does not have yet are written, so every record stays live and the log
+ * never needs compacting.
+ */
+final class QuestionLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(QuestionLog.class);
+    private static final int MAGIC = 0x534B514C; // "SKQL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int INITIAL_SIZE = 1 << 20;
+    private static final int MAX_GROWTH = 64 << 20;
+
+    private final Path path;
+    private final QuestionStore store;
+    private final Object appendLock = new Object();
+    private final Object forceLock = new Object();
+    private final CRC32C crc = new CRC32C(); // guarded by appendLock
+    private final FileChannel channel;
+    private MappedByteBuffer map;             // guarded by appendLock
+    private int writePosition;                // guarded by appendLock
+    private int durablePosition;              // guarded by forceLock
+    private boolean forcing;                  // guarded by forceLock
+
+    /**
+     * Opens or creates the log and replays its questions into the store.
+     */
+    QuestionLog(Path path, QuestionStore store) throws IOException {
+        this.path = path;
+        this.store = store;
+        long started = System.nanoTime();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(path + " is larger than 2 GB");
+        }
+        if (length < HEADER_SIZE) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+            map.putInt(0, MAGIC).putInt(4, VERSION);
+            map.force();
+            writePosition = HEADER_SIZE;
+        } else {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                channel.close();
+                throw new IOException(path + " is not a question log");
+            }
+            recover();
+        }
+        durablePosition = writePosition;
+        logger.info("Opened question log {}: {} questions in {} ms", path, store.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    /**
+     * Opens the question log configured by the system property
+     * sockserver.quiz.log (default questions.log, empty disables persistence).
+     *
+     * @return the log, already replayed into the store, or null if it is disabled or cannot be opened
+     */
+    static QuestionLog fromSystemProperties(QuestionStore store) {
+        String file = System.getProperty("sockserver.quiz.log", "questions.log");
+        if (file.isEmpty()) {
+            return null;
+        }
+        try {
+            return new QuestionLog(Paths.get(file), store);
+        } catch (IOException e) {
+            logger.error("Cannot open question log {}, quiz questions will not be persisted: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    // Replays the records into the store, stopping at the first zero length or bad record.
+    private void recover() throws IOException {
+        int limit = map.capacity();
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= limit) {
+            int length = map.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            int start = position + RECORD_HEADER_SIZE;
+            if (length < 4 || length > limit - start || checksum(start, length) != map.getInt(position + 4)) {
+                logger.warn("Question log {} has a torn or corrupt record at offset {}, discarding the rest of the file",
+                        path, position);
+                wipe(position, limit);
+                break;
+            }
+            store.putIfAbsent(decode(start, length));
+            position = start + length;
+        }
+        writePosition = position;
+    }
+
+    private int checksum(int start, int length) {
+        crc.reset();
+        crc.update(map.slice(start, length));
+        return (int) crc.getValue();
+    }
+
+    private SockServer.Question decode(int start, int length) {
+        int questionLength = map.getInt(start);
+        byte[] bytes = new byte[length - 4];
+        map.get(start + 4, bytes);
+        return new SockServer.Question(new String(bytes, 0, questionLength, StandardCharsets.UTF_8),
+                new String(bytes, questionLength, bytes.length - questionLength, StandardCharsets.UTF_8));
+    }
+
+    private void wipe(int from, int to) {
+        byte[] zeros = new byte[8192];
+        for (int position = from; position < to; position += zeros.length) {
+            map.put(position, zeros, 0, Math.min(zeros.length, to - position));
+        }
+        map.force();
+    }
+
+    /**
+     * Adds the question unless one with the same normalized text is stored, and returns once it
+     * is on disk.
+     *
+     * @return whether it was added
+     */
+    boolean addIfAbsent(SockServer.Question question) throws IOException {
+        return addAllIfAbsent(Collections.singletonList(question))[0];
+    }
+
+    /**
+     * Adds the questions whose normalized text is not stored yet, including earlier questions of
+     * the same list, and returns once they are on disk. The whole list costs one force.
+     *
+     * @return for each question, whether it was added
+     */
+    boolean[] addAllIfAbsent(List<SockServer.Question> questions) throws IOException {
+        boolean[] added;
+        int position;
+        synchronized (appendLock) {
+            added = new boolean[questions.size()];
+            for (int i = 0; i < added.length; i++) {
+                SockServer.Question question = questions.get(i);
+                if (store.indexOf(question.questionText) < 0) {
+                    append(question);
+                    store.putIfAbsent(question);
+                    added[i] = true;
+                }
+            }
+            position = writePosition;
+        }
+        // even with nothing added, the stored questions may still be waiting for another writer's force
+        awaitDurable(position);
+        return added;
+    }
+
+    // Called with appendLock held.
+    private void append(SockServer.Question question) throws IOException {
+        byte[] text = question.questionText.getBytes(StandardCharsets.UTF_8);
+        byte[] answer = question.answer.getBytes(StandardCharsets.UTF_8);
+        long length = 4L + text.length + answer.length;
+        long end = writePosition + RECORD_HEADER_SIZE + length;
+        if (end > map.capacity()) {
+            grow(end);
+        }
+        int start = writePosition + RECORD_HEADER_SIZE;
+        map.putInt(start, text.length).put(start + 4, text).put(start + 4 + text.length, answer);
+        map.putInt(writePosition + 4, checksum(start, (int) length));
+        // the length goes in last, so a crash in the middle of an append leaves the end of the log
+        map.putInt(writePosition, (int) length);
+        writePosition = (int) end;
+    }
+
+    // Called with appendLock held. Remaps the file with room for at least minCapacity bytes.
+    private void grow(long minCapacity) throws IOException {
+        if (minCapacity > Integer.MAX_VALUE) {
+            throw new IOException("Question log " + path + " is full");
+        }
+        long capacity = Math.max(minCapacity, (long) map.capacity() + Math.min(map.capacity(), MAX_GROWTH));
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Waits until everything up to position is on disk. One waiter at a time forces the file,
+     * covering the writes of all the others that arrived meanwhile.
+     */
+    private void awaitDurable(int position) throws IOException {
+        int from;
+        synchronized (forceLock) {
+            while (durablePosition < position && forcing) {
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the question log", e);
+                }
+            }
+            if (durablePosition >= position) {
+                return;
+            }
+            forcing = true;
+            from = durablePosition; // only what was written since the last force
+        }
+        int forced = from;
+        try {
+            MappedByteBuffer target;
+            int to;
+            synchronized (appendLock) {
+                target = map;
+                to = writePosition;
+            }
+            target.force(from, to - from);
+            forced = to;
+        } finally {
+            synchronized (forceLock) {
+                forcing = false;
+                durablePosition = Math.max(durablePosition, forced);
+                forceLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            map.force();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Append-only store of quiz questions, built for many concurrent readers and rare writers.
+ * <p>
+ * Questions live in fixed-size segments reached through a directory array. Appends take a lock,
+ * write the question into its slot and then publish it by incrementing the volatile size, so
+ * readers never lock and never write shared state: a random pick is two volatile reads, a
+ * thread-local random number and two array loads. Segments are never moved, so growing the store
+ * only copies the (small) directory.
+ * <p>
+ * Question texts are unique after normalization: case, leading and trailing whitespace and the
+ * length of whitespace runs are ignored, so "What is 2+2?" and " what is  2+2? " are the same
+ * question. Writers find a stored question in O(1) through an open-addressing index of the
+ * normalized text hashes; normalized texts are compared in place, never built as strings.
+ */
+final class QuestionStore {
+    private static final int SEGMENT_SHIFT = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final Object appendLock = new Object();
+    private volatile SockServer.Question[][] segments = new SockServer.Question[1][];
+    private volatile int size;
+    // Open-addressing index: question index + 1 (0 marks a free slot) and the hash of its
+    // normalized text, so most probes are decided without comparing texts; guarded by appendLock
+    private int[] indexes = new int[16];
+    private int[] hashes = new int[16];
+
+    /**
+     * Adds a question unless one with the same normalized text is stored; safe to call from any
+     * thread.
+     *
+     * @return whether it was added
+     */
+    boolean putIfAbsent(SockServer.Question question) {
+        synchronized (appendLock) {
+            int hash = keyHash(question.questionText);
+            int slot = findSlot(question.questionText, hash);
+            if (indexes[slot] != 0) {
+                return false;
+            }
+            append(question, slot, hash);
+            return true;
+        }
+    }
+
+    /**
+     * Adds each question whose normalized text is not stored yet, including earlier questions of
+     * the same list.
+     *
+     * @return for each question, whether it was added
+     */
+    boolean[] putAllIfAbsent(List<SockServer.Question> questions) {
+        boolean[] added = new boolean[questions.size()];
+        synchronized (appendLock) {
+            for (int i = 0; i < added.length; i++) {
+                SockServer.Question question = questions.get(i);
+                int hash = keyHash(question.questionText);
+                int slot = findSlot(question.questionText, hash);
+                if (indexes[slot] == 0) {
+                    append(question, slot, hash);
+                    added[i] = true;
+                }
+            }
+        }
+        return added;
+    }
+
+    // Called with appendLock held; slot is the free index slot for the question's text.
+    private void append(SockServer.Question question, int slot, int hash) {
+        int index = size;
+        if (index == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Question store is full");
+        }
+        int segment = index >>> SEGMENT_SHIFT;
+        SockServer.Question[][] current = segments;
+        if (segment == current.length) {
+            SockServer.Question[][] grown = new SockServer.Question[current.length * 2][];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            segments = current = grown;
+        }
+        if (current[segment] == null) {
+            current[segment] = new SockServer.Question[SEGMENT_SIZE];
+        }
+        current[segment][index & SEGMENT_MASK] = question;
+        indexes[slot] = index + 1;
+        hashes[slot] = hash;
+        size = index + 1; // publishes the question to readers
+        if (size * 2 > indexes.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * @return the index of the question with the same normalized text, or -1 if there is none
+     */
+    int indexOf(String questionText) {
+        synchronized (appendLock) {
+            return indexes[findSlot(questionText, keyHash(questionText))] - 1;
+        }
+    }
+
+    // Called with appendLock held. Returns the slot holding the text, or the free slot where it belongs.
+    private int findSlot(String questionText, int hash) {
+        int mask = indexes.length - 1;
+        int slot = mix(hash) & mask;
+        while (indexes[slot] != 0) {
+            if (hashes[slot] == hash) {
+                int index = indexes[slot] - 1;
+                if (sameKey(segments[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK].questionText, questionText)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        int[] oldIndexes = indexes;
+        int[] oldHashes = hashes;
+        indexes = new int[oldIndexes.length * 2];
+        hashes = new int[oldIndexes.length * 2];
+        int mask = indexes.length - 1;
+        for (int i = 0; i < oldIndexes.length; i++) {
+            if (oldIndexes[i] != 0) {
+                int slot = mix(oldHashes[i]) & mask;
+                while (indexes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                indexes[slot] = oldIndexes[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the hash of the normalized text, as String.hashCode of it would compute
+     */
+    static int keyHash(String text) {
+        int hash = 0;
+        boolean pendingSpace = false;
+        boolean started = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = started;
+                continue;
+            }
+            if (pendingSpace) {
+                hash = 31 * hash + ' ';
+                pendingSpace = false;
+            }
+            hash = 31 * hash + Character.toLowerCase(c);
+            started = true;
+        }
+        return hash;
+    }
+
+    /**
+     * @return whether both texts are the same after normalization
+     */
+    static boolean sameKey(String a, String b) {
+        int i = skipWhitespace(a, 0);
+        int j = skipWhitespace(b, 0);
+        while (i < a.length() && j < b.length()) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(j);
+            boolean spaceA = Character.isWhitespace(ca);
+            if (spaceA != Character.isWhitespace(cb)) {
+                return false;
+            }
+            if (spaceA) {
+                i = skipWhitespace(a, i);
+                j = skipWhitespace(b, j);
+                if ((i == a.length()) != (j == b.length())) {
+                    return false; // trailing whitespace on one side, more words on the other
+                }
+            } else if (ca == cb || Character.toLowerCase(ca) == Character.toLowerCase(cb)) {
+                i++;
+                j++;
+            } else {
+                return false;
+            }
+        }
+        return skipWhitespace(a, i) == a.length() && skipWhitespace(b, j) == b.length();
+    }
+
+    private static int skipWhitespace(String text, int from) {
+        while (from < text.length() && Character.isWhitespace(text.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * @param index a value below size()
+     */
+    SockServer.Question get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return segments[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK];
+    }
+
+    /**
+     * Picks a question uniformly at random without locking or contending with other readers.
+     *
+     * @return the question, or null if the store is empty
+     */
+    SockServer.Question random() {
+        int n = size; // read before segments, so every index below n is visible
+        if (n == 0) {
+            return null;
+        }
+        int index = ThreadLocalRandom.current().nextInt(n);
+        return segments[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK];
+    }
+
+    int size() {
+        return size;
+    }
+}
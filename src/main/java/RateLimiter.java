@@ -0,0 +1,238 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Connection rate limiter keyed by client address.
+ * <p>
+ * Each key is a token bucket implemented with the generic cell rate algorithm: the only state is
+ * one "theoretical arrival time" per key, updated with a CAS, so checks are lock-free and never
+ * allocate for known keys. A key whose bucket is full again carries no information and is
+ * dropped by the periodic sweep, which keeps memory proportional to recently active clients.
+ * If the table is still full after a sweep, new clients share a single overflow bucket.
+ * <p>
+ * Limits apply per IP by default. CIDR rules override the limit for addresses in a block,
+ * either per IP or shared by the whole block.
+ */
+final class RateLimiter {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long SWEEP_INTERVAL_NANOS = 10 * NANOS_PER_SECOND;
+    private static final long FULL_SWEEP_INTERVAL_NANOS = NANOS_PER_SECOND / 10;
+    private static final String OVERFLOW_KEY = "*overflow*";
+
+    private final Limit defaultLimit;
+    private final List<Rule> rules;
+    private final int maxKeys;
+    private final LongSupplier clock;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Rate and burst of one bucket. A rate of zero or less disables limiting.
+     */
+    static final class Limit {
+        final double perSecond;
+        final int burst;
+        final long intervalNanos;
+        final long toleranceNanos;
+
+        Limit(double perSecond, int burst) {
+            if (burst < 1) {
+                throw new IllegalArgumentException("burst must be at least 1");
+            }
+            this.perSecond = perSecond;
+            this.burst = burst;
+            this.intervalNanos = perSecond > 0 ? (long) (NANOS_PER_SECOND / perSecond) : 0;
+            this.toleranceNanos = intervalNanos * burst;
+        }
+
+        boolean unlimited() {
+            return intervalNanos == 0;
+        }
+    }
+
+    /**
+     * A CIDR block with its own limit.
+     */
+    static final class Rule {
+        final String cidr;
+        final byte[] network;
+        final int prefixLength;
+        final Limit limit;
+        final boolean shared;
+
+        Rule(String cidr, Limit limit, boolean shared) {
+            int slash = cidr.indexOf('/');
+            try {
+                this.network = InetAddress.getByName(slash < 0 ? cidr : cidr.substring(0, slash)).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Invalid CIDR block: " + cidr);
+            }
+            this.prefixLength = slash < 0 ? network.length * 8 : Integer.parseInt(cidr.substring(slash + 1));
+            if (prefixLength < 0 || prefixLength > network.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length in CIDR block: " + cidr);
+            }
+            this.cidr = cidr;
+            this.limit = limit;
+            this.shared = shared;
+        }
+
+        boolean matches(byte[] address) {
+            if (address.length != network.length) {
+                return false;
+            }
+            int fullBytes = prefixLength / 8;
+            for (int i = 0; i < fullBytes; i++) {
+                if (address[i] != network[i]) {
+                    return false;
+                }
+            }
+            int remainingBits = prefixLength % 8;
+            if (remainingBits == 0) {
+                return true;
+            }
+            int mask = 0xFF << (8 - remainingBits);
+            return (address[fullBytes] & mask) == (network[fullBytes] & mask);
+        }
+    }
+
+    RateLimiter(Limit defaultLimit, List<Rule> rules, int maxKeys, LongSupplier clock) {
+        this.defaultLimit = defaultLimit;
+        this.rules = new ArrayList<>(rules);
+        this.rules.sort(Comparator.comparingInt((Rule r) -> r.prefixLength).reversed()); // most specific first
+        this.maxKeys = maxKeys;
+        this.clock = clock;
+        this.lastSweep = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Builds a limiter from system properties:
+     * sockserver.ratelimit.rate (connections per second per IP, default 5, 0 disables),
+     * sockserver.ratelimit.burst (default 20),
+     * sockserver.ratelimit.maxKeys (tracked clients, default 100000) and
+     * sockserver.ratelimit.cidr, a list like "10.0.0.0/8=500,1000;192.168.0.0/16=50,100,shared"
+     * giving rate and burst per block, optionally shared by the whole block.
+     */
+    static RateLimiter fromSystemProperties() {
+        Limit limit = new Limit(Double.parseDouble(System.getProperty("sockserver.ratelimit.rate", "5")),
+                Integer.getInteger("sockserver.ratelimit.burst", 20));
+        return new RateLimiter(limit, parseRules(System.getProperty("sockserver.ratelimit.cidr", "")),
+                Integer.getInteger("sockserver.ratelimit.maxKeys", 100000), System::nanoTime);
+    }
+
+    static List<Rule> parseRules(String spec) {
+        List<Rule> rules = new ArrayList<>();
+        for (String entry : spec.split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int eq = entry.indexOf('=');
+            String[] parts = eq < 0 ? new String[0] : entry.substring(eq + 1).split(",");
+            if (parts.length < 2 || parts.length > 3 || (parts.length == 3 && !parts[2].trim().equals("shared"))) {
+                throw new IllegalArgumentException("Invalid rate limit rule: " + entry + " (expected cidr=rate,burst[,shared])");
+            }
+            Limit limit = new Limit(Double.parseDouble(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+            rules.add(new Rule(entry.substring(0, eq).trim(), limit, parts.length == 3));
+        }
+        return rules;
+    }
+
+    /**
+     * Takes one token for the given client.
+     *
+     * @return true if the connection is allowed, false if the client is over its limit
+     */
+    boolean tryAcquire(InetAddress address) {
+        Limit limit = defaultLimit;
+        String key = null;
+        if (!rules.isEmpty()) {
+            byte[] bytes = address.getAddress();
+            for (Rule rule : rules) {
+                if (rule.matches(bytes)) {
+                    limit = rule.limit;
+                    if (rule.shared) {
+                        key = rule.cidr;
+                    }
+                    break;
+                }
+            }
+        }
+        if (limit.unlimited()) {
+            return true;
+        }
+        if (key == null) {
+            key = address.getHostAddress();
+        }
+        long now = clock.getAsLong();
+        maybeSweep(now);
+        AtomicLong tat = buckets.get(key);
+        if (tat == null) {
+            if (buckets.size() >= maxKeys) {
+                // Sweep early, but not for every new client while the table stays full.
+                long last = lastSweep.get();
+                if (now - last >= FULL_SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) {
+                    sweep(now);
+                }
+                if (buckets.size() >= maxKeys) {
+                    key = OVERFLOW_KEY;
+                }
+            }
+            tat = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        while (true) {
+            long current = tat.get();
+            long next = Math.max(current, now) + limit.intervalNanos;
+            if (next - now > limit.toleranceNanos) {
+                rejected.increment();
+                return false;
+            }
+            if (tat.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    private void maybeSweep(long now) {
+        long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) {
+            sweep(now);
+        }
+    }
+
+    /**
+     * Drops every key whose bucket has refilled completely. An acquire racing with the removal
+     * of its key can at worst go unrecorded, granting that client one extra token.
+     */
+    private void sweep(long now) {
+        Iterator<AtomicLong> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().get() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of clients currently tracked
+     */
+    int trackedKeys() {
+        return buckets.size();
+    }
+
+    /**
+     * @return total number of rejected connection attempts
+     */
+    long rejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,530 @@
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of a request that is parsed exactly once.
+ * parse() walks the text a single time, validating it and remembering where each top-level
+ * value starts and ends. A value is only turned into Java objects the first time a handler
+ * asks for it, so looking up "type" for dispatch does not decode a large "nums" array.
+ * Extends JSONObject so the service handlers work on it unchanged.
+ */
+final class RequestView extends JSONObject {
+    private static final Object UNDECODED = new Object();
+    private static final int MAX_DEPTH = 512;
+    private static final int INDEX_THRESHOLD = 16;
+
+    private final String text;
+    private final boolean object;
+    private String[] names = new String[8];
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private Object[] values = new Object[8];
+    private int count;
+    private Map<String, Integer> index;
+    private int pos;
+
+    /**
+     * Thrown by the scanner when the text is not strict JSON. Preallocated, it only triggers the fallback.
+     */
+    private static final class Malformed extends RuntimeException {
+        Malformed() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Malformed MALFORMED = new Malformed();
+
+    private RequestView(String text, boolean object) {
+        this.text = text;
+        this.object = object;
+    }
+
+    /**
+     * Parses a request.
+     *
+     * @param text the request text
+     * @return the view; isObject() is false if the text is a valid JSON array
+     * @throws JSONException if the text is neither a JSON object nor a JSON array
+     */
+    static RequestView parse(String text) {
+        int first = 0;
+        while (first < text.length() && text.charAt(first) <= ' ') {
+            first++;
+        }
+        if (first == text.length() || (text.charAt(first) != '{' && text.charAt(first) != '[')) {
+            throw new JSONException("A JSON request must begin with '{' or '['");
+        }
+        RequestView view = new RequestView(text, text.charAt(first) == '{');
+        view.pos = first;
+        try {
+            if (view.object) {
+                view.scanTopLevelObject();
+            } else {
+                view.scanValue(0);
+            }
+            view.skipWhitespace();
+            if (view.pos != text.length()) {
+                throw MALFORMED;
+            }
+            return view;
+        } catch (Malformed | StringIndexOutOfBoundsException e) {
+            return lenient(text);
+        }
+    }
+
+    /**
+     * Falls back to org.json for text the strict scanner rejects, so requests that org.json
+     * tolerates (single quotes, unquoted strings, trailing text, ...) keep working.
+     */
+    private static RequestView lenient(String text) {
+        JSONObject parsed;
+        try {
+            parsed = new JSONObject(text);
+        } catch (JSONException e) {
+            new JSONArray(text); // throws if the text is not JSON at all
+            return new RequestView(text, false);
+        }
+        RequestView view = new RequestView(text, true);
+        for (String key : parsed.keySet()) {
+            view.add(key, 0, 0);
+            view.values[view.count - 1] = parsed.opt(key);
+        }
+        return view;
+    }
+
+    /**
+     * @return true if the request is a JSON object, false if it is a JSON array
+     */
+    boolean isObject() {
+        return object;
+    }
+
+    // ---- JSONObject overrides ----
+
+    @Override
+    public Object opt(String key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        Object value = values[i];
+        if (value == UNDECODED) {
+            value = decode(starts[i], ends[i]);
+            values[i] = value;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean has(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(names[i]);
+        }
+        return keys;
+    }
+
+    @Override
+    public int length() {
+        return count;
+    }
+
+    @Override
+    public JSONObject put(String key, Object value) {
+        throw new UnsupportedOperationException("RequestView is read-only");
+    }
+
+    /**
+     * @return the original request text
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    @Override
+    public Writer write(Writer writer) {
+        try {
+            writer.write(text);
+            return writer;
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    /**
+     * Reads an array of integers straight from the request text into a primitive array, without
+     * building a JSONArray or boxing the elements. Elements may be JSON numbers or strings holding
+     * an integer, as SockClient sends them.
+     *
+     * @return the values, or null if the field is missing, not an array, or has an element that is
+     * not a plain integer in long range; callers then fall back to the generic JSONArray path
+     */
+    long[] longArray(String key) {
+        int i = indexOf(key);
+        if (i < 0 || values[i] != UNDECODED || text.charAt(starts[i]) != '[') {
+            return null;
+        }
+        int p = starts[i] + 1;
+        int end = ends[i] - 1; // the closing bracket
+        p = skipWhitespace(p);
+        if (p == end) {
+            return new long[0];
+        }
+        // at most one element per two characters; start small and double, then trim
+        long[] result = new long[Math.min(1024, (end - p + 1) / 2 + 1)];
+        int n = 0;
+        while (true) {
+            boolean quoted = text.charAt(p) == '"';
+            if (quoted) {
+                p++;
+            }
+            boolean negative = text.charAt(p) == '-';
+            if (negative) {
+                p++;
+            }
+            int digitsStart = p;
+            long value = 0;
+            char c;
+            while ((c = text.charAt(p)) >= '0' && c <= '9') {
+                // accumulate negatively, so Long.MIN_VALUE fits
+                if (value < (Long.MIN_VALUE + (c - '0')) / 10) {
+                    return null;
+                }
+                value = value * 10 - (c - '0');
+                p++;
+            }
+            if (p == digitsStart || (quoted && text.charAt(p++) != '"')) {
+                return null;
+            }
+            if (!negative) {
+                if (value == Long.MIN_VALUE) {
+                    return null;
+                }
+                value = -value;
+            }
+            if (n == result.length) {
+                result = Arrays.copyOf(result, n * 2);
+            }
+            result[n++] = value;
+            p = skipWhitespace(p);
+            c = text.charAt(p++);
+            if (c == ']') {
+                return n == result.length ? result : Arrays.copyOf(result, n);
+            }
+            if (c != ',') {
+                return null; // a fraction or exponent, left to the generic path
+            }
+            p = skipWhitespace(p);
+        }
+    }
+
+    private int skipWhitespace(int p) {
+        char c;
+        while ((c = text.charAt(p)) == ' ' || c == '\t' || c == '\n' || c == '\r') {
+            p++;
+        }
+        return p;
+    }
+
+    // ---- lookup and decoding ----
+
+    private int indexOf(String key) {
+        if (key == null) {
+            return -1;
+        }
+        if (index != null) {
+            Integer i = index.get(key);
+            return i == null ? -1 : i;
+        }
+        for (int i = 0; i < count; i++) {
+            if (names[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void add(String key, int start, int end) {
+        if (indexOf(key) >= 0) {
+            throw new JSONException("Duplicate key \"" + key + "\"");
+        }
+        if (count == names.length) {
+            int size = count * 2;
+            names = Arrays.copyOf(names, size);
+            starts = Arrays.copyOf(starts, size);
+            ends = Arrays.copyOf(ends, size);
+            values = Arrays.copyOf(values, size);
+        }
+        names[count] = key;
+        starts[count] = start;
+        ends[count] = end;
+        values[count] = UNDECODED;
+        count++;
+        if (index != null) {
+            index.put(key, count - 1);
+        } else if (count > INDEX_THRESHOLD) {
+            index = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                index.put(names[i], i);
+            }
+        }
+    }
+
+    private Object decode(int start, int end) {
+        char c = text.charAt(start);
+        switch (c) {
+            case '"':
+                return unescape(start + 1, end - 1);
+            case '{':
+            case '[':
+                return new JSONTokener(text.substring(start, end)).nextValue();
+            case 't':
+                return Boolean.TRUE;
+            case 'f':
+                return Boolean.FALSE;
+            case 'n':
+                return JSONObject.NULL;
+            default:
+                return JSONObject.stringToValue(text.substring(start, end));
+        }
+    }
+
+    private String unescape(int start, int end) {
+        int slash = start;
+        while (slash < end && text.charAt(slash) != '\\') {
+            slash++;
+        }
+        if (slash == end) {
+            return text.substring(start, end);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i++);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            c = text.charAt(i++);
+            switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+                    i += 4;
+                    break;
+                default: // '"', '\\', '/'
+                    sb.append(c);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    // ---- strict single-pass scanner ----
+
+    private void scanTopLevelObject() {
+        pos++; // '{'
+        skipWhitespace();
+        if (text.charAt(pos) == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            if (text.charAt(pos) != '"') {
+                throw MALFORMED;
+            }
+            int keyStart = pos;
+            scanString();
+            String key = unescape(keyStart + 1, pos - 1);
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            int valueStart = pos;
+            scanValue(1);
+            add(key, valueStart, pos);
+            skipWhitespace();
+            char c = text.charAt(pos++);
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    private void scanValue(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new JSONException("Request nested too deeply");
+        }
+        char c = text.charAt(pos);
+        switch (c) {
+            case '"':
+                scanString();
+                return;
+            case '{':
+                scanContainer('}', true, depth);
+                return;
+            case '[':
+                scanContainer(']', false, depth);
+                return;
+            case 't':
+                scanLiteral("true");
+                return;
+            case 'f':
+                scanLiteral("false");
+                return;
+            case 'n':
+                scanLiteral("null");
+                return;
+            default:
+                scanNumber();
+        }
+    }
+
+    private void scanContainer(char close, boolean members, int depth) {
+        pos++;
+        skipWhitespace();
+        if (text.charAt(pos) == close) {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            if (members) {
+                if (text.charAt(pos) != '"') {
+                    throw MALFORMED;
+                }
+                scanString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+            }
+            scanValue(depth + 1);
+            skipWhitespace();
+            char c = text.charAt(pos++);
+            if (c == close) {
+                return;
+            }
+            if (c != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    private void scanString() {
+        pos++; // opening quote
+        while (true) {
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return;
+            }
+            if (c < ' ') {
+                throw MALFORMED;
+            }
+            if (c == '\\') {
+                char e = text.charAt(pos++);
+                if (e == 'u') {
+                    for (int i = 0; i < 4; i++) {
+                        if (Character.digit(text.charAt(pos++), 16) < 0) {
+                            throw MALFORMED;
+                        }
+                    }
+                } else if ("\"\\/bfnrt".indexOf(e) < 0) {
+                    throw MALFORMED;
+                }
+            }
+        }
+    }
+
+    private void scanNumber() {
+        int start = pos;
+        if (text.charAt(pos) == '-') {
+            pos++;
+        }
+        int digits = scanDigits();
+        if (digits == 0 || (digits > 1 && text.charAt(pos - digits) == '0')) {
+            throw MALFORMED;
+        }
+        if (pos < text.length() && text.charAt(pos) == '.') {
+            pos++;
+            if (scanDigits() == 0) {
+                throw MALFORMED;
+            }
+        }
+        if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+            pos++;
+            if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+                pos++;
+            }
+            if (scanDigits() == 0) {
+                throw MALFORMED;
+            }
+        }
+        if (pos == start) {
+            throw MALFORMED;
+        }
+    }
+
+    private int scanDigits() {
+        int start = pos;
+        while (pos < text.length() && text.charAt(pos) >= '0' && text.charAt(pos) <= '9') {
+            pos++;
+        }
+        return pos - start;
+    }
+
+    private void scanLiteral(String literal) {
+        if (!text.startsWith(literal, pos)) {
+            throw MALFORMED;
+        }
+        pos += literal.length();
+    }
+
+    private void expect(char c) {
+        if (text.charAt(pos++) != c) {
+            throw MALFORMED;
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+}
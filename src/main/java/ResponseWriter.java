@@ -0,0 +1,368 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes JSON responses straight into a buffer reused for every response of a connection, in
+ * the writeUTF framing: a 2 byte length followed by the modified UTF-8 text.
+ * <p>
+ * Hot services emit their fields through {@link #begin()}, the field methods and
+ * {@link #end(Object)} without building a JSONObject at all, and return {@link #WRITTEN} in its
+ * place. Every other response is walked with {@link #write(JSONObject)}, which produces the same
+ * bytes as writeUTF(res.toString()) without the intermediate String and byte array. Strings
+ * are escaped exactly as JSONObject.quote does.
+ * <p>
+ * The buffer never grows beyond what writeUTF can frame; the bytes of a longer response are only
+ * counted, so {@link #tooLarge()} can report its size.
+ */
+final class ResponseWriter {
+    // Returned in place of a response that has already been written to the connection's writer.
+    static final JSONObject WRITTEN = new JSONObject();
+    private static final int INITIAL_SIZE = 512;
+    private static final int KEPT_SIZE = 16 * 1024; // larger buffers are dropped on the next response
+    private static final int MAX_SIZE = 2 + WireFormat.MAX_UTF_LENGTH;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private ByteBuffer view = ByteBuffer.wrap(buf);
+    private final byte[] digits = new byte[19];
+    private int length;     // bytes of the JSON text so far, including those past MAX_SIZE
+    private boolean first;  // no field written yet in the current object
+    private boolean ok;
+    private Object type;
+    private Object id;
+
+    /**
+     * Starts a response, discarding the previous one.
+     */
+    ResponseWriter begin() {
+        if (buf.length > KEPT_SIZE) {
+            buf = new byte[INITIAL_SIZE];
+            view = ByteBuffer.wrap(buf);
+        }
+        length = 0;
+        ok = false;
+        type = null;
+        id = null;
+        put('{');
+        first = true;
+        return this;
+    }
+
+    ResponseWriter field(String name, boolean value) {
+        if ("ok".equals(name)) {
+            ok = value;
+        }
+        name(name);
+        putAscii(value ? "true" : "false");
+        return this;
+    }
+
+    ResponseWriter field(String name, long value) {
+        name(name);
+        putLong(value);
+        return this;
+    }
+
+    ResponseWriter field(String name, String value) {
+        if ("type".equals(name)) {
+            type = value;
+        }
+        name(name);
+        if (value == null) {
+            putAscii("null");
+        } else {
+            quote(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a string field whose value is prefix followed by value, without concatenating them.
+     */
+    ResponseWriter field(String name, String prefix, String value) {
+        name(name);
+        put('"');
+        char last = escape(prefix, '\0');
+        escape(value, last);
+        put('"');
+        return this;
+    }
+
+    /**
+     * Writes a field of any value JSONObject.put accepts.
+     */
+    ResponseWriter field(String name, Object value) {
+        name(name);
+        value(value);
+        return this;
+    }
+
+    /**
+     * Ends the response.
+     *
+     * @param id the request's correlation id, added as the last field, or null
+     */
+    void end(Object id) {
+        if (id != null) {
+            this.id = id;
+            field("id", id);
+        }
+        put('}');
+    }
+
+    /**
+     * Writes a whole response; the bytes are those of writeUTF(res.toString()).
+     */
+    void write(JSONObject res) {
+        begin();
+        for (String key : res.keySet()) {
+            field(key, res.opt(key));
+        }
+        put('}');
+        type = res.opt("type");
+        id = res.opt("id");
+        ok = res.optBoolean("ok");
+    }
+
+    /**
+     * Replaces a response too long for writeUTF with the error asking the client to negotiate
+     * chunked framing. The type and id of the replaced response are kept; like JSONObject.put,
+     * a missing one is left out.
+     */
+    void tooLarge() {
+        int tooLong = length;
+        Object type = this.type;
+        Object id = this.id;
+        begin();
+        if (type != null) {
+            field("type", type);
+        }
+        field("ok", false);
+        field("message", SockServer.tooLargeMessage(tooLong));
+        end(id);
+    }
+
+    /**
+     * @return the "ok" field of a response written field by field
+     */
+    boolean ok() {
+        return ok;
+    }
+
+    /**
+     * @return the size of the response text in bytes, without the length prefix
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return false if the response is too long for writeUTF
+     */
+    boolean fits() {
+        return length <= WireFormat.MAX_UTF_LENGTH;
+    }
+
+    /**
+     * Writes the framed response; it must fit.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        frame();
+        out.write(buf, 0, 2 + length);
+    }
+
+    /**
+     * @return the framed response, in a view that is only valid until the next response; it must fit
+     */
+    ByteBuffer buffer() {
+        frame();
+        view.clear().limit(2 + length);
+        return view;
+    }
+
+    /**
+     * @return the response text, for debug logging
+     */
+    String text() {
+        if (!fits()) {
+            return "(" + length + " bytes)";
+        }
+        frame();
+        try {
+            return new DataInputStream(new ByteArrayInputStream(buf, 0, 2 + length)).readUTF();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void frame() {
+        buf[0] = (byte) (length >>> 8);
+        buf[1] = (byte) length;
+    }
+
+    private void name(String name) {
+        if (!first) {
+            put(',');
+        }
+        first = false;
+        quote(name);
+        put(':');
+    }
+
+    // Same output as JSONObject.writeValue for the values responses hold.
+    private void value(Object value) {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            putAscii("null");
+        } else if (value instanceof String) {
+            quote((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            putLong(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            putAscii((Boolean) value ? "true" : "false");
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            boolean outerFirst = first;
+            put('{');
+            first = true;
+            for (String key : object.keySet()) {
+                field(key, object.opt(key));
+            }
+            put('}');
+            first = outerFirst;
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            put('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    put(',');
+                }
+                value(array.opt(i));
+            }
+            put(']');
+        } else {
+            putModifiedUtf8(JSONObject.valueToString(value)); // doubles, maps, collections, ...
+        }
+    }
+
+    private void quote(String s) {
+        put('"');
+        escape(s, '\0');
+        put('"');
+    }
+
+    /**
+     * Writes s escaped as in JSONObject.quote, where previous is the character written before it.
+     *
+     * @return the last character of s, or previous if s is empty
+     */
+    private char escape(String s, char previous) {
+        char c = previous;
+        for (int i = 0; i < s.length(); i++) {
+            char b = c;
+            c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    put('\\');
+                    put(c);
+                    break;
+                case '/':
+                    if (b == '<') {
+                        put('\\');
+                    }
+                    put(c);
+                    break;
+                case '\b':
+                    putAscii("\\b");
+                    break;
+                case '\t':
+                    putAscii("\\t");
+                    break;
+                case '\n':
+                    putAscii("\\n");
+                    break;
+                case '\f':
+                    putAscii("\\f");
+                    break;
+                case '\r':
+                    putAscii("\\r");
+                    break;
+                default:
+                    if (c < 0x20 || (c >= 0x80 && c < 0xA0) || (c >= 0x2000 && c < 0x2100)) {
+                        putAscii("\\u");
+                        put(HEX[(c >> 12) & 0xF]);
+                        put(HEX[(c >> 8) & 0xF]);
+                        put(HEX[(c >> 4) & 0xF]);
+                        put(HEX[c & 0xF]);
+                    } else {
+                        putChar(c);
+                    }
+            }
+        }
+        return c;
+    }
+
+    private void putLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            putAscii(Long.toString(v));
+            return;
+        }
+        if (v < 0) {
+            put('-');
+            v = -v;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        while (n > 0) {
+            put(digits[--n]);
+        }
+    }
+
+    private void putAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            put(s.charAt(i));
+        }
+    }
+
+    private void putModifiedUtf8(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            putChar(s.charAt(i));
+        }
+    }
+
+    // Modified UTF-8, as writeUTF encodes: NUL and supplementary characters take 2 and 6 bytes.
+    private void putChar(char c) {
+        if (c >= 0x0001 && c <= 0x007F) {
+            put(c);
+        } else if (c > 0x07FF) {
+            put(0xE0 | ((c >> 12) & 0x0F));
+            put(0x80 | ((c >> 6) & 0x3F));
+            put(0x80 | (c & 0x3F));
+        } else {
+            put(0xC0 | ((c >> 6) & 0x1F));
+            put(0x80 | (c & 0x3F));
+        }
+    }
+
+    private void put(int b) {
+        int at = 2 + length++;
+        if (at >= buf.length) {
+            if (at >= MAX_SIZE) {
+                return; // too long for writeUTF anyway, only counted
+            }
+            buf = Arrays.copyOf(buf, Math.min(MAX_SIZE, buf.length * 2));
+            view = ByteBuffer.wrap(buf);
+        }
+        buf[at] = (byte) b;
+    }
+}
@@ -0,0 +1,197 @@
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histograms per request type, latency histograms per phase of the
+ * request lifecycle, and connection gauges. Everything is recorded lock-free and without
+ * allocation; {@link #snapshot()} renders the current values for the "stats" request.
+ * <p>
+ * Phases of one exchange: read (first byte to request decoded), parse (JSON scan),
+ * dispatch (request type lookup until the handler starts), handler, and write
+ * (encoding and sending the response).
+ */
+final class ServerStats {
+    // Types served by the JSON and binary protocols; anything else is counted as OTHER.
+    private static final String[] SERVICE_NAMES = {"echo", "add", "addmany", "stringconcatenation", "quizgame",
+            "batch", "stats", "negotiate", "concat", "concatmany", "quizadd", "quiznext", "quizanswer", "quizoptions"};
+    private static final String OTHER = "other";
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<String, Service> services = new LinkedHashMap<>();
+    private final Service other = new Service();
+    private final LatencyHistogram read = new LatencyHistogram();
+    private final LatencyHistogram parse = new LatencyHistogram();
+    private final LatencyHistogram dispatch = new LatencyHistogram();
+    private final LatencyHistogram handler = new LatencyHistogram();
+    private final LatencyHistogram write = new LatencyHistogram();
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder headerTimeouts = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder readTimeouts = new LongAdder();
+    private final LongAdder compressedConnections = new LongAdder();
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder requestWireBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final LongAdder responseWireBytes = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+
+    /**
+     * Counters of one request type. Latency is measured from the first byte read to the
+     * response written.
+     */
+    private static final class Service {
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    ServerStats() {
+        // Filled once and only read afterwards, so lookups need no locking.
+        for (String name : SERVICE_NAMES) {
+            services.put(name, new Service());
+        }
+    }
+
+    void connectionOpened() {
+        openConnections.increment();
+        totalConnections.increment();
+    }
+
+    void connectionClosed() {
+        openConnections.decrement();
+    }
+
+    void connectionRejected() {
+        rateLimited.increment();
+    }
+
+    /**
+     * Counts a connection closed by one of the ConnectionTimeouts deadlines.
+     */
+    void connectionTimedOut(String kind) {
+        switch (kind) {
+            case ConnectionTimeouts.HEADER:
+                headerTimeouts.increment();
+                break;
+            case ConnectionTimeouts.IDLE:
+                idleTimeouts.increment();
+                break;
+            default:
+                readTimeouts.increment();
+        }
+    }
+
+    /**
+     * Adds the compression totals of a closed connection; sizes are of compressed messages only.
+     */
+    void compressed(long requestPlain, long requestWire, long responsePlain, long responseWire, long nanos) {
+        compressedConnections.increment();
+        requestBytes.add(requestPlain);
+        requestWireBytes.add(requestWire);
+        responseBytes.add(responsePlain);
+        responseWireBytes.add(responseWire);
+        compressionNanos.add(nanos);
+    }
+
+    /**
+     * Records a finished exchange. Phases whose timestamps were not set are skipped.
+     */
+    void record(Exchange exchange) {
+        Service service = services.getOrDefault(exchange.type, other);
+        service.requests.increment();
+        if (!exchange.ok) {
+            service.errors.increment();
+        }
+        service.latency.record(exchange.latencyNanos());
+        if (exchange.readStartNanos != 0) {
+            read.record(exchange.startNanos - exchange.readStartNanos);
+        }
+        if (exchange.parsedNanos != 0) {
+            parse.record(exchange.parsedNanos - exchange.startNanos);
+        }
+        if (exchange.handlerStartNanos != 0) {
+            dispatch.record(exchange.handlerStartNanos - (exchange.parsedNanos != 0 ? exchange.parsedNanos : exchange.startNanos));
+            handler.record(exchange.handledNanos - exchange.handlerStartNanos);
+            write.record(exchange.endNanos - exchange.handledNanos);
+        }
+    }
+
+    /**
+     * @return the current statistics, latencies in microseconds
+     */
+    JSONObject snapshot() {
+        long uptimeMillis = Math.max(1, System.currentTimeMillis() - startMillis);
+        JSONObject res = new JSONObject();
+        res.put("uptimeMs", uptimeMillis);
+
+        JSONObject connections = new JSONObject();
+        connections.put("open", openConnections.sum());
+        connections.put("total", totalConnections.sum());
+        connections.put("rateLimited", rateLimited.sum());
+        JSONObject timedOut = new JSONObject();
+        timedOut.put(ConnectionTimeouts.HEADER, headerTimeouts.sum());
+        timedOut.put(ConnectionTimeouts.IDLE, idleTimeouts.sum());
+        timedOut.put(ConnectionTimeouts.READ, readTimeouts.sum());
+        connections.put("timedOut", timedOut);
+        res.put("connections", connections);
+
+        JSONObject compression = new JSONObject();
+        compression.put("connections", compressedConnections.sum());
+        compression.put("requestBytes", requestBytes.sum());
+        compression.put("requestWireBytes", requestWireBytes.sum());
+        compression.put("responseBytes", responseBytes.sum());
+        compression.put("responseWireBytes", responseWireBytes.sum());
+        compression.put("ratio", Compression.ratio(requestBytes.sum() + responseBytes.sum(),
+                requestWireBytes.sum() + responseWireBytes.sum()));
+        compression.put("cpuMs", compressionNanos.sum() / 1e6);
+        res.put("compression", compression);
+
+        JSONObject byType = new JSONObject();
+        for (Map.Entry<String, Service> entry : services.entrySet()) {
+            putService(byType, entry.getKey(), entry.getValue(), uptimeMillis);
+        }
+        putService(byType, OTHER, other, uptimeMillis);
+        res.put("services", byType);
+
+        JSONObject phases = new JSONObject();
+        phases.put("read", latency(read));
+        phases.put("parse", latency(parse));
+        phases.put("dispatch", latency(dispatch));
+        phases.put("handler", latency(handler));
+        phases.put("write", latency(write));
+        res.put("phases", phases);
+        return res;
+    }
+
+    private static void putService(JSONObject byType, String name, Service service, long uptimeMillis) {
+        long requests = service.requests.sum();
+        if (requests == 0) {
+            return;
+        }
+        JSONObject json = new JSONObject();
+        json.put("requests", requests);
+        json.put("errors", service.errors.sum());
+        json.put("perSecond", requests * 1000.0 / uptimeMillis);
+        json.put("latencyUs", latency(service.latency));
+        byType.put(name, json);
+    }
+
+    private static JSONObject latency(LatencyHistogram histogram) {
+        JSONObject json = new JSONObject();
+        long[] values = histogram.percentiles(PERCENTILES);
+        for (int i = 0; i < values.length; i++) {
+            json.put(PERCENTILE_NAMES[i], values[i] / 1000.0);
+        }
+        json.put("max", histogram.max() / 1000.0);
+        json.put("mean", histogram.mean() / 1000.0);
+        json.put("count", histogram.count());
+        return json;
+    }
+}
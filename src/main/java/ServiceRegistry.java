@@ -0,0 +1,242 @@
+import org.json.JSONObject;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * The services of the JSON protocol by request type, looked up with one hash probe per request.
+ * <p>
+ * A service either runs on the thread that read the request, or in its own bounded executor (a
+ * bulkhead) if it can be expensive: at most that many threads run the service at once and at most
+ * queueCapacity requests wait for them, further requests get a busy response right away. Huge
+ * addmany or concatenation requests therefore compute on their own threads only.
+ * <p>
+ * The NIO engine hands such a request over and gets the response back through a callback, so its
+ * event loops never wait for a bulkhead and keep serving their other connections; the connection
+ * stops reading until the response is sent, so its responses keep their order. Connection threads
+ * of the blocking engine wait for the response instead. That isolates CPU only: in platform mode a
+ * waiting connection still holds its pool thread, so many clients sending heavy requests can still
+ * occupy every worker (with virtual threads waiting costs no platform thread).
+ * <p>
+ * The thread and queue sizes of a registered service can be overridden with the system properties
+ * {@code sockserver.service.<type>.threads} and {@code sockserver.service.<type>.queue}; 0 threads
+ * runs it on the calling thread.
+ */
+final class ServiceRegistry {
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    // Returned instead of a response that will be passed to the caller's callback.
+    static final JSONObject DEFERRED = new JSONObject();
+
+    /**
+     * Handles one request of a service.
+     */
+    @FunctionalInterface
+    interface Service {
+        /**
+         * @param req                       the request, with its "type" already checked
+         * @param currentQuizQuestionHolder the connection's current quiz question, null for
+         *                                  stateless requests of a batch
+         * @param peer                      the client address, used for logging
+         * @return the response, without the request id
+         */
+        JSONObject handle(JSONObject req, SockServer.Question[] currentQuizQuestionHolder, SocketAddress peer) throws Exception;
+    }
+
+    /**
+     * Writes the response of one request straight into the connection's ResponseWriter, for
+     * services called so often that building a JSONObject per response matters.
+     */
+    @FunctionalInterface
+    interface DirectService {
+        /**
+         * @param req the request, with its "type" already checked
+         * @param out the connection's writer, with {@link ResponseWriter#begin()} not called yet
+         * @return false, having written nothing, if the request needs the service's Service
+         * instead, e.g. for an error response
+         */
+        boolean write(JSONObject req, ResponseWriter out) throws Exception;
+    }
+
+    private static final class Registration {
+        final Service service;
+        final DirectService direct; // null if the service always builds a JSONObject
+        final ThreadPoolExecutor executor; // null runs the service on the calling thread
+
+        Registration(Service service, DirectService direct, ThreadPoolExecutor executor) {
+            this.service = service;
+            this.direct = direct;
+            this.executor = executor;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Registration> services = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a service that runs on the calling thread, replacing any service of that type.
+     */
+    void register(String type, Service service) {
+        register(type, service, 0, 0);
+    }
+
+    /**
+     * Registers a service that runs on the calling thread and writes its responses directly when
+     * the connection allows it, replacing any service of that type.
+     *
+     * @param service builds the response when direct cannot, and inside batches
+     */
+    void register(String type, Service service, DirectService direct) {
+        register(type, service, direct, 0, 0);
+    }
+
+    /**
+     * Registers a service, replacing any service of that type.
+     *
+     * @param threads       threads of the service's own executor, 0 to run on the calling thread
+     * @param queueCapacity requests that may wait for one of those threads
+     */
+    void register(String type, Service service, int threads, int queueCapacity) {
+        register(type, service, null, threads, queueCapacity);
+    }
+
+    private void register(String type, Service service, DirectService direct, int threads, int queueCapacity) {
+        threads = Integer.getInteger("sockserver.service." + type + ".threads", threads);
+        queueCapacity = Integer.getInteger("sockserver.service." + type + ".queue", queueCapacity);
+        if (threads < 0 || queueCapacity < 0) {
+            throw new IllegalArgumentException("Threads and queue of service " + type + " must not be negative");
+        }
+        ThreadPoolExecutor executor = null;
+        if (threads > 0) {
+            BlockingQueue<Runnable> queue = queueCapacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity);
+            executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+                    daemonThreads("service-" + type));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        Registration previous = services.put(type, new Registration(service, direct, executor));
+        if (previous != null && previous.executor != null) {
+            previous.executor.shutdown(); // requests already accepted still finish
+        }
+    }
+
+    /**
+     * Runs the service of the given type.
+     *
+     * @param isolated false to run the service on the calling thread even if it has an executor,
+     *                 as batch entries do: the batch itself is the unit that waits
+     * @return the response, or null if no service has that type
+     * @throws Exception whatever the service threw
+     */
+    JSONObject handle(String type, JSONObject req, SockServer.Question[] currentQuizQuestionHolder, SocketAddress peer,
+                      boolean isolated) throws Exception {
+        return handle(type, req, currentQuizQuestionHolder, peer, isolated, null);
+    }
+
+    /**
+     * Same as {@link #handle(String, JSONObject, SockServer.Question[], SocketAddress, boolean)},
+     * letting a direct service write its response into out.
+     *
+     * @param out the connection's writer, null if responses cannot be written directly
+     * @return {@link ResponseWriter#WRITTEN} if the response was written into out, without its end
+     */
+    JSONObject handle(String type, JSONObject req, SockServer.Question[] currentQuizQuestionHolder, SocketAddress peer,
+                      boolean isolated, ResponseWriter out) throws Exception {
+        return handle(type, req, currentQuizQuestionHolder, peer, isolated, out, null);
+    }
+
+    /**
+     * Same as {@link #handle(String, JSONObject, SockServer.Question[], SocketAddress, boolean, ResponseWriter)},
+     * without waiting for a service that runs in its own executor if done is given.
+     *
+     * @param done null to wait for such a service; otherwise it receives the service's response,
+     *             or what the service threw, on the executor's thread
+     * @return {@link #DEFERRED} if the response will be passed to done
+     */
+    JSONObject handle(String type, JSONObject req, SockServer.Question[] currentQuizQuestionHolder, SocketAddress peer,
+                      boolean isolated, ResponseWriter out, BiConsumer<JSONObject, Throwable> done) throws Exception {
+        Registration registration = services.get(type);
+        if (registration == null) {
+            return null;
+        }
+        if (out != null && registration.direct != null && registration.direct.write(req, out)) {
+            return ResponseWriter.WRITTEN;
+        }
+        Service service = registration.service;
+        if (!isolated || registration.executor == null) {
+            return service.handle(req, currentQuizQuestionHolder, peer);
+        }
+        if (done != null) {
+            try {
+                registration.executor.execute(() -> {
+                    JSONObject res;
+                    try {
+                        res = service.handle(req, currentQuizQuestionHolder, peer);
+                    } catch (Throwable t) {
+                        done.accept(null, t); // the caller is waiting for an answer either way
+                        return;
+                    }
+                    done.accept(res, null);
+                });
+            } catch (RejectedExecutionException e) {
+                return busy(type);
+            }
+            return DEFERRED;
+        }
+        Future<JSONObject> result;
+        try {
+            result = registration.executor.submit(() -> service.handle(req, currentQuizQuestionHolder, peer));
+        } catch (RejectedExecutionException e) {
+            return busy(type);
+        }
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the executor of the service of the given type, or null if the service runs on the
+     * calling thread or there is none; requests of the binary protocol share it this way
+     */
+    Executor executor(String type) {
+        Registration registration = services.get(type);
+        return registration == null ? null : registration.executor;
+    }
+
+    private static JSONObject busy(String type) {
+        JSONObject res = new JSONObject();
+        res.put("type", type);
+        res.put("ok", false);
+        res.put("message", "Service " + type + " is busy, please try again.");
+        return res;
+    }
+
+    // Daemon threads, so an idle bulkhead never keeps the JVM alive.
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
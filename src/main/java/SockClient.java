@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.Scanner;
 
 
@@ -24,6 +25,9 @@ import java.util.Scanner;
  * handling, server communication, and JSON parsing in a Java application.
  * Notes:
  * - The program requires the host (as a String) and port (as an integer) to be passed as command-line arguments.
+ * An optional third argument "binary" switches to the compact BinaryProtocol instead of JSON,
+ * "load" followed by option=value pairs runs the non-interactive LoadGenerator instead, and
+ * "import" followed by a file name streams a question file into the quiz with QuestionImporter.
  * - Input validation is minimal and assumes correct user input where required.
  * - All services communicate with the server through sockets using ObjectOutputStream for outgoing messages
  * and DataInputStream for incoming messages.
@@ -42,11 +46,24 @@ public class SockClient {
     // to show the difference. Do not change these types.
     static ObjectOutputStream os;
     static DataInputStream in;
+    // Set instead of the streams above when the binary protocol was requested.
+    static BinaryClient binary;
+    static boolean chunked;
+    static Compression compression;
 
     public static void main(String[] args) {
 
-        if (args.length != 2) {
-            System.out.println("Expected arguments: <host(String)> <port(int)>");
+        if (args.length >= 3 && args[2].equals("load")) {
+            runLoad(args);
+            return;
+        }
+        if (args.length >= 4 && args[2].equals("import")) {
+            runImport(args);
+            return;
+        }
+        if (args.length < 2 || args.length > 3
+                || (args.length == 3 && !args[2].equals("binary") && !args[2].equals("chunked") && !args[2].equals("compressed"))) {
+            System.out.println("Expected arguments: <host(String)> <port(int)> [binary | chunked | compressed | load [option=value...] | import <file> [option=value...]]");
             System.exit(1);
         }
 
@@ -59,7 +76,15 @@ public class SockClient {
         }
 
         try {
-            connect(host, port); // connecting to server
+            if (args.length == 3 && args[2].equals("binary")) {
+                binary = new BinaryClient(host, port); // compact binary protocol instead of JSON
+            } else {
+                connect(host, port); // connecting to server
+                if (args.length == 3) {
+                    // responses of any size instead of at most 64 KB, large messages compressed if asked
+                    negotiate(args[2].equals("compressed"));
+                }
+            }
             System.out.println("Client connected to server.");
             boolean requesting = true;
             while (requesting) {
@@ -151,16 +176,24 @@ public class SockClient {
                     continue;
                 }
 
-                // write the whole message
-                os.writeObject(json.toString());
-                // make sure it wrote and doesn't get cached in a buffer
-                os.flush();
+                JSONObject res;
+                if (binary != null) {
+                    res = callBinary(json);
+                } else {
+                    // write the whole message
+                    os.writeObject(compression != null ? compression.deflate(json.toString()) : json.toString());
+                    // make sure it wrote and doesn't get cached in a buffer
+                    os.flush();
 
-                // handle the response
-                // - not doing anything other than printing payload
-                // !! you will most likely need to parse the response for the other 2 services!
-                String i = in.readUTF();
-                JSONObject res = new JSONObject(i);
+                    // handle the response
+                    // - not doing anything other than printing payload
+                    // !! you will most likely need to parse the response for the other 2 services!
+                    if (compression != null) {
+                        res = compression.readJson(in);
+                    } else {
+                        res = chunked ? ChunkedFraming.readJson(in) : new JSONObject(in.readUTF());
+                    }
+                }
                 // ... after receiving the response from server into res ...
                 System.out.println("Got response: " + res);
                 if (res.getBoolean("ok")) {
@@ -172,8 +205,8 @@ public class SockClient {
                             break;
                         case "add":
                         case "addmany":
-                            // For addition services, the result is an integer.
-                            System.out.println(res.getInt("result"));
+                            // For addition services, the result is an integer (addmany sums may exceed a long).
+                            System.out.println(res.get("result"));
                             break;
                         case "stringconcatenation":
                             // For string concatenation, the result is a string.
@@ -208,6 +241,57 @@ public class SockClient {
         }
     }
 
+    /**
+     * Sends a request built by the menu over the binary protocol and converts the typed result
+     * into the same JSON shape the server would have answered with, so it can be printed the same way.
+     *
+     * @param json the request built by the menu
+     * @return the response in JSON protocol form
+     * @throws IOException if the connection fails
+     */
+    static JSONObject callBinary(JSONObject json) throws IOException {
+        String type = json.getString("type");
+        JSONObject res = new JSONObject();
+        res.put("type", type);
+        try {
+            switch (type) {
+                case "echo":
+                    res.put("echo", binary.echo(json.getString("data")));
+                    break;
+                case "add":
+                    res.put("result", binary.add(Integer.parseInt(json.getString("num1")), Integer.parseInt(json.getString("num2"))));
+                    break;
+                case "addmany":
+                    JSONArray array = json.getJSONArray("nums");
+                    int[] nums = new int[array.length()];
+                    for (int k = 0; k < nums.length; k++) {
+                        nums[k] = Integer.parseInt(array.getString(k));
+                    }
+                    res.put("result", binary.addMany(nums));
+                    break;
+                case "stringconcatenation":
+                    res.put("result", binary.concat(json.getString("string1"), json.getString("string2")));
+                    break;
+                case "quizgame":
+                    if (json.has("addQuestion") && json.getBoolean("addQuestion")) {
+                        binary.addQuestion(json.getString("question"), json.getString("answer"));
+                    } else if (json.has("addQuestion")) {
+                        res.put("question", binary.nextQuestion());
+                    } else {
+                        res.put("result", binary.answer(json.getString("answer")));
+                    }
+                    break;
+                default:
+                    throw new BinaryClient.ServerException("Type " + type + " is not supported.");
+            }
+            res.put("ok", true);
+        } catch (BinaryClient.ServerException | NumberFormatException e) {
+            res.put("ok", false);
+            res.put("message", e.getMessage());
+        }
+        return res;
+    }
+
     /**
      * Closes the resources used for communication, including the input stream,
      * output stream, and socket connection.
@@ -221,6 +305,61 @@ public class SockClient {
         sock.close(); // close socked after sending
     }
 
+    /**
+     * Headless mode: drives load at the server and prints throughput and latency percentiles.
+     */
+    private static void runLoad(String[] args) {
+        try {
+            LoadGenerator load = new LoadGenerator(args[0], Integer.parseInt(args[1]), Arrays.copyOfRange(args, 3, args.length));
+            load.run();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(2);
+        } catch (Exception e) {
+            System.out.println("Load run failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Headless mode: streams a question file into the quiz and prints what was added.
+     */
+    private static void runImport(String[] args) {
+        try {
+            QuestionImporter importer = new QuestionImporter(args[0], Integer.parseInt(args[1]), args[3],
+                    Arrays.copyOfRange(args, 4, args.length));
+            importer.run();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(2);
+        } catch (Exception e) {
+            System.out.println("Import failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Switches the connection to chunked response framing, optionally with deflate compression.
+     *
+     * @throws IOException if the connection fails or the server refuses
+     */
+    static void negotiate(boolean deflate) throws IOException {
+        JSONObject request = new JSONObject();
+        request.put("type", "negotiate");
+        request.put("framing", ChunkedFraming.FRAMING_CHUNKED);
+        request.put("compression", deflate ? Compression.DEFLATE : Compression.NONE);
+        os.writeObject(request.toString());
+        os.flush();
+        JSONObject res = new JSONObject(in.readUTF()); // the negotiate response itself is still writeUTF
+        if (!res.getBoolean("ok")) {
+            throw new IOException("Server refused to negotiate: " + res.optString("message"));
+        }
+        chunked = true;
+        if (deflate) {
+            compression = new Compression(res.getInt("threshold"));
+        }
+    }
+
     /**
      * Establishes a connection to the specified host and port.
      * Initializes the socket, output stream, object output stream, and input stream
@@ -6,31 +6,85 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
 
 /**
  * A class to demonstrate a simple client-server connection using sockets.
  * Robust error handling and logging have been added so that unexpected issues
  * (such as connection problems or improper requests) do not crash the server.
+ * <p>
+ * Runs standalone through main, or embedded: create an instance (port 0 picks a free port),
+ * start it, read the bound port with getPort and stop it gracefully with stop or close.
  */
-public class SockServer {
+public class SockServer implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(SockServer.class);
     private static final byte[] JAVA_MAGIC_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
-    // A simple rate limiter per IP (you can swap this with a more advanced implementation)
-// Note: This is a simple example and may require refinement for production use.
-    private static final Map<String, Integer> connectionAttempts = new ConcurrentHashMap<>();
-    private static final int MAX_CONNECTIONS_PER_MINUTE = 4;
-    static ArrayList<Question> quizQuestions = new ArrayList<>();
+    // One line per request, written off the request path; null when sockserver.accesslog.file is empty.
+    static final AccessLog accessLog = AccessLog.fromSystemProperties();
+    // Counters and latency histograms, served by the "stats" request.
+    static final ServerStats stats = new ServerStats();
+    // Caps connections and requests in flight across all servers of the process.
+    static final AdmissionControl admission = AdmissionControl.fromSystemProperties();
+    private static final String NIO_ENGINE = "nio";
+    // Batches at least this large run their stateless requests in parallel.
+    static final int BATCH_PARALLEL_THRESHOLD = 64;
+    static final int MAX_BATCH_SIZE = 100000;
+    // Per-item results of an addQuestions request must fit in one response.
+    static final int MAX_QUESTIONS_PER_REQUEST = 2000;
+    private static final ForkJoinPool BATCH_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    // Quiz questions shared by all clients; reads are lock-free.
+    static final QuestionStore quizQuestions = new QuestionStore();
+    // Keeps added questions across restarts; null when sockserver.quiz.log is empty.
+    static final QuestionLog questionLog = QuestionLog.fromSystemProperties(quizQuestions);
+    // Services of the JSON protocol by request type; register more here without touching the connection loop.
+    static final ServiceRegistry services = defaultServices();
 
-    // Static initializer for quiz questions.
+    private final int requestedPort;
+    private final String mode;
+    private final int poolSize;
+    // Connection rate limiter per client IP, configured through sockserver.ratelimit.* system properties.
+    private final RateLimiter rateLimiter = RateLimiter.fromSystemProperties();
+    // Header, idle and read deadlines of each connection, configured through sockserver.timeout.* system properties.
+    private final ConnectionTimeouts timeouts = ConnectionTimeouts.fromSystemProperties();
+    // When responses are written to the socket, configured through sockserver.flush.* system properties.
+    private final FlushPolicy flushPolicy = FlushPolicy.fromSystemProperties();
+    // Open connections of the blocking engine, drained on stop.
+    private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+    // Listening sockets sharing the port (sockserver.acceptors) and their accept queue length (sockserver.backlog).
+    private final int acceptorCount = ListenSockets.acceptorsFromSystemProperties();
+    private final int backlog = ListenSockets.backlogFromSystemProperties();
+    // One listening socket, acceptor thread and worker pool per acceptor of the blocking engine.
+    private List<ServerSocket> serverSockets;
+    private List<ExecutorService> workers;
+    private List<Thread> acceptors;
+    private NioServer nioServer;
+    private volatile boolean stopping;
+
+    // Static initializer for quiz questions; a question log already holds them after the first start.
     static {
-        quizQuestions.add(new Question("What is 2+2?", "4"));
-        quizQuestions.add(new Question("What is the capital of France?", "Paris"));
+        if (quizQuestions.size() == 0) {
+            addQuestion("What is 2+2?", "4");
+            addQuestion("What is the capital of France?", "Paris");
+        }
     }
 
     /**
@@ -40,19 +94,201 @@ public class SockServer {
      * @param ip the IP address to check for rate limiting
      * @return true if the IP address is rate-limited, false otherwise
      */
-    private static boolean isRateLimited(String ip) {
-        int count = connectionAttempts.getOrDefault(ip, 0);
-        if (count > MAX_CONNECTIONS_PER_MINUTE) {
-            return true;
+    boolean isRateLimited(InetAddress ip) {
+        if (rateLimiter.tryAcquire(ip)) {
+            return false;
+        }
+        stats.connectionRejected();
+        logger.debug("Rate limit exceeded for client IP: {}", ip.getHostAddress());
+        return true;
+    }
+
+    ConnectionTimeouts timeouts() {
+        return timeouts;
+    }
+
+    FlushPolicy flushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Creates a server; nothing is bound until {@link #start()}.
+     *
+     * @param port     port to listen on, 0 for any free port
+     * @param mode     "virtual" (one virtual thread per client), "platform" (bounded thread pool)
+     *                 or "nio" (non-blocking engine)
+     * @param poolSize size of the platform thread pool, or the number of event loops for nio
+     */
+    public SockServer(int port, String mode, int poolSize) {
+        if (!NIO_ENGINE.equalsIgnoreCase(mode) && !WorkerPools.VIRTUAL.equalsIgnoreCase(mode)
+                && !WorkerPools.PLATFORM.equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("Unknown mode " + mode + ", expected virtual, platform or nio");
+        }
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1. Provided: " + poolSize);
+        }
+        this.requestedPort = port;
+        this.mode = mode;
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Binds the port and starts accepting connections in the background.
+     *
+     * @throws IOException if the port cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        if (acceptors != null || nioServer != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        if (NIO_ENGINE.equalsIgnoreCase(mode)) {
+            nioServer = new NioServer(this, requestedPort, poolSize, acceptorCount, backlog);
+            nioServer.start();
+            return;
+        }
+        serverSockets = ListenSockets.bind(requestedPort, acceptorCount, backlog);
+        int count = serverSockets.size();
+        int port = serverSockets.get(0).getLocalPort();
+        // Platform threads serve one connection each; at most sockserver.admission.queue more wait for one.
+        // Several acceptors split both, so each feeds its own workers.
+        int queue = admission.connectionQueue();
+        if (WorkerPools.VIRTUAL.equalsIgnoreCase(mode) && !WorkerPools.virtualThreadsSupported()) {
+            logger.warn("Virtual threads are not available on this JVM, using {} platform threads instead", poolSize);
+        }
+        List<ExecutorService> pools = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                String suffix = count == 1 ? "" : "-" + (i + 1);
+                ServerSocket serverSocket = serverSockets.get(i);
+                ExecutorService pool = WorkerPools.create(mode, ceilDiv(poolSize, count), ceilDiv(queue, count), "client" + suffix);
+                pools.add(pool);
+                threads.add(new Thread(() -> acceptLoop(serverSocket, pool), "acceptor-" + port + suffix));
+            }
+        } catch (RuntimeException | Error e) {
+            // do not leave the port bound by a server that never runs
+            pools.forEach(ExecutorService::shutdown);
+            ListenSockets.closeAll(serverSockets);
+            serverSockets = null;
+            throw e;
+        }
+        workers = pools;
+        acceptors = threads;
+        acceptors.forEach(Thread::start);
+        logger.info("Server started on port {} ({} pool, {} acceptors, backlog {})", port, mode, count, backlog);
+    }
+
+    private static int ceilDiv(int x, int y) {
+        return (x + y - 1) / y;
+    }
+
+    /**
+     * @return the port the server listens on, useful after binding port 0, or -1 before start
+     */
+    public synchronized int getPort() {
+        if (nioServer != null) {
+            return nioServer.getPort();
+        }
+        return serverSockets != null ? serverSockets.get(0).getLocalPort() : -1;
+    }
+
+    private void acceptLoop(ServerSocket serverSocket, ExecutorService workers) {
+        // The main loop catches exceptions and logs them without crashing.
+        // Each client is served on its own worker so a slow client cannot block the others.
+        while (!stopping) {
+            try {
+                logger.debug("Waiting for client connection...");
+                Socket sock = serverSocket.accept(); // blocking wait
+                // Rate limiting check, done here so rejected clients never reach a worker.
+                if (isRateLimited(sock.getInetAddress())) {
+                    sock.close();
+                    continue;
+                }
+                if (!admission.tryOpenConnection()) {
+                    logger.warn("Connection limit reached, refusing client {}", sock.getRemoteSocketAddress());
+                    sock.close();
+                    continue;
+                }
+                logger.info("Client connected: {}", sock.getRemoteSocketAddress());
+                ClientConnection connection = new ClientConnection(sock);
+                try {
+                    workers.execute(connection);
+                } catch (RejectedExecutionException ree) {
+                    logger.warn("No worker available for client {}, closing connection", sock.getRemoteSocketAddress());
+                    connection.finished();
+                    sock.close();
+                }
+            } catch (Exception e) {
+                if (stopping) {
+                    break;
+                }
+                // Log exception details and continue waiting for the next client.
+                logger.error("Error accepting or handling client connection: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Graceful shutdown: stops accepting connections, closes idle connections, lets busy ones
+     * finish the request they are serving and then closes them. Connections still open when the
+     * timeout expires are closed forcibly.
+     *
+     * @return true if every connection finished within the timeout
+     */
+    public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            if (stopping) {
+                return true;
+            }
+            stopping = true;
+        }
+        if (nioServer != null) {
+            return nioServer.stop(deadline);
+        }
+        if (serverSockets == null) {
+            return true; // never started
+        }
+        int port = getPort();
+        ListenSockets.closeAll(serverSockets); // unblocks accept
+        for (Thread acceptor : acceptors) {
+            acceptor.join();
+        }
+        for (ClientConnection connection : connections) {
+            connection.drain();
+        }
+        workers.forEach(ExecutorService::shutdown);
+        boolean drained = true;
+        for (ExecutorService pool : workers) {
+            drained &= pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        if (!drained) {
+            logger.warn("{} connections still busy after {} {}, closing them", connections.size(), timeout, unit);
+            for (ClientConnection connection : connections) {
+                connection.closeSocket();
+            }
+            workers.forEach(ExecutorService::shutdownNow);
+        }
+        logger.info("Server on port {} stopped", port);
+        return drained;
+    }
+
+    /**
+     * Stops the server, waiting up to sockserver.shutdown.timeout seconds (default 10) for busy connections.
+     */
+    @Override
+    public void close() {
+        try {
+            stop(Long.getLong("sockserver.shutdown.timeout", 10), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        connectionAttempts.put(ip, count + 1);
-        return false;
     }
 
     public static void main(String[] args) {
 
         if (args.length < 1) {
-            throw new IllegalArgumentException("Expected port as argument: <port>");
+            throw new IllegalArgumentException("Expected arguments: <port> [virtual|platform|nio] [poolSize]");
         }
 
         int port = 8888;
@@ -63,173 +299,618 @@ public class SockServer {
             System.exit(2);
         }
 
-        try (ServerSocket serv = new ServerSocket(port)) {
-            logger.info("Server started on port {}", port);
-            System.out.println("Server started on port " + port);
-
-            // The main loop now catches exceptions and logs them without crashing.
-            while (true) {
-                try {
-                    logger.info("Waiting for client connection...");
-                    Socket sock = serv.accept(); // blocking wait
-                    logger.info("Client connected: {}", sock.getRemoteSocketAddress());
-                    handleClient(sock);
-                } catch (Exception e) {
-                    // Log exception details and continue waiting for the next client.
-                    logger.error("Error accepting or handling client connection: {}", e.getMessage(), e);
-                }
+        // Optional engine and pool settings: one virtual thread per client by default,
+        // a bounded pool of platform threads, or the non-blocking NIO engine.
+        String poolMode = args.length > 1 ? args[1] : WorkerPools.VIRTUAL;
+        boolean nio = NIO_ENGINE.equalsIgnoreCase(poolMode);
+        int poolSize = nio ? Runtime.getRuntime().availableProcessors() : WorkerPools.DEFAULT_POOL_SIZE;
+        if (args.length > 2) {
+            try {
+                poolSize = Integer.parseInt(args[2]);
+            } catch (NumberFormatException nfe) {
+                logger.error("Pool size argument must be an integer. Provided: {}", args[2]);
+                System.exit(2);
             }
+        }
+
+        SockServer server;
+        try {
+            server = new SockServer(port, poolMode, poolSize);
+            server.start();
+        } catch (IllegalArgumentException iae) {
+            logger.error(iae.getMessage());
+            System.exit(2);
+            return;
         } catch (Exception e) {
             logger.error("Critical error starting server: {}", e.getMessage(), e);
+            System.exit(1);
+            return;
+        }
+        System.out.println("Server started on port " + server.getPort());
+        scheduleStatsDump(Long.getLong("sockserver.stats.interval", 60));
+        // On SIGTERM or Ctrl-C (e.g. during a rolling deploy) finish in-flight requests before exiting.
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "shutdown"));
+    }
+
+    /**
+     * Logs the statistics every intervalSeconds, if positive.
+     */
+    private static void scheduleStatsDump(long intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
         }
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(() -> logger.info("Stats: {}", stats.snapshot()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
     }
 
     /**
-     * Processes a single client connection in a try-with-resources block.
+     * One client connection of the blocking engine. It tracks whether a request is being served,
+     * so a graceful stop can close idle connections at once and busy ones after their response,
+     * and its deadline closes the socket under a client that stays silent or reads too slowly.
      */
-    private static void handleClient(Socket clientSocket) {
-        String clientIP = clientSocket.getInetAddress().getHostAddress();
+    private final class ClientConnection implements Runnable {
+        private final Socket clientSocket;
+        private final ConnectionTimeouts.Deadline deadline;
+        private BufferedInputStream bis;
+        private FlushPolicy.Output output;
+        private boolean busy;     // guarded by this
+        private boolean draining; // guarded by this
 
-        // Rate limiting check.
-        if (isRateLimited(clientIP)) {
-            logger.warn("Rate limit exceeded for client IP: {}", clientIP);
+        ClientConnection(Socket clientSocket) {
+            this.clientSocket = clientSocket;
+            this.deadline = timeouts.newDeadline(clientSocket.getRemoteSocketAddress(), this::closeSocket);
+            connections.add(this);
+        }
+
+        @Override
+        public void run() {
             try {
-                clientSocket.close();
-            } catch (Exception ignore) {
+                handleClient();
+            } finally {
+                finished();
+            }
+        }
+
+        void finished() {
+            deadline.cancel();
+            connections.remove(this);
+            admission.connectionClosed();
+        }
+
+        private synchronized void requestStarted() {
+            busy = true;
+            deadline.reading();
+        }
+
+        private synchronized void responseSent() throws IOException {
+            busy = bis.available() > 0; // pipelined requests already received
+            awaitRequest(busy);
+            if (draining && !busy) {
+                closeSocket();
             }
-            return;
         }
 
-        try (
-                // Wrap the raw input stream so we can check the magic header first.
-                BufferedInputStream bis = new BufferedInputStream(clientSocket.getInputStream());
-                DataOutputStream os = new DataOutputStream(clientSocket.getOutputStream())
-        ) {
-            bis.mark(8);  // mark the stream so we can reset it after reading the first 4 bytes.
-            byte[] header = new byte[4];
-            int readCount = bis.read(header);
-            if (readCount != 4 || !Arrays.equals(header, JAVA_MAGIC_HEADER)) {
-                // Log the received header as a hex string for diagnostic purposes.
-                String hexHeader = DatatypeConverter.printHexBinary(header);
-                logger.warn("[{}] Received invalid magic header: {}. Connection will be closed.", clientSocket.getRemoteSocketAddress(), hexHeader);
+        // Whether the next request has at least partly arrived, so responses may be held back.
+        private boolean requestsBuffered() {
+            try {
+                return bis != null && bis.available() > 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        // Responses held back go out before the connection waits for more bytes from the client.
+        private void awaitingInput(InputStream socketIn) throws IOException {
+            if (output.holding() && socketIn.available() == 0) {
+                output.flushHeld();
+            }
+        }
+
+        // Starts the idle deadline, or the read deadline if the next request has partly arrived.
+        private void awaitRequest(boolean received) {
+            deadline.idle();
+            if (received) {
+                deadline.reading();
+            }
+        }
+
+        synchronized void drain() {
+            draining = true;
+            if (!busy) {
+                closeSocket();
+            }
+        }
+
+        void closeSocket() {
+            try {
                 clientSocket.close();
-                return;
+            } catch (IOException e) {
+                logger.error("Error closing client socket: {}", e.getMessage(), e);
             }
-            // Reset the stream so that ObjectInputStream can read the entire serialized stream.
-            bis.reset();
-            ObjectInputStream in = new ObjectInputStream(bis);
+        }
 
-            // Process the connection using your protocol as before.
-            final Question[] currentQuizQuestionHolder = new Question[1];
-            boolean connected = true;
-            while (connected) {
-                String input = "";
-                try {
-                    input = (String) in.readObject();
-                    logger.info("[{}] Received request: {}", clientSocket.getRemoteSocketAddress(), input);
-                } catch (EOFException eof) {
-                    logger.warn("[{}] Client disconnected unexpectedly: {}", clientSocket.getRemoteSocketAddress(), eof.getMessage());
-                    break;
-                } catch (StreamCorruptedException sce) {
-                    logger.warn("[{}] Stream corrupted: {}", clientSocket.getRemoteSocketAddress(), sce.getMessage());
-                    break;
-                } catch (Exception e) {
-                    logger.warn("[{}] Exception reading from client: {}. Possibly bad protocol data.", clientSocket.getRemoteSocketAddress(), e.getMessage());
-                    break;
-                }
+        /**
+         * Processes the connection in a try-with-resources block.
+         * All per-connection state (such as the current quiz question) is local to this call.
+         */
+        private void handleClient() {
+            stats.connectionOpened();
+            deadline.start();
+            InputStream socketIn;
+            OutputStream socketOut;
+            try {
+                output = flushPolicy.output(clientSocket.getOutputStream(), this::requestsBuffered);
+                socketIn = new FilterInputStream(clientSocket.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        awaitingInput(in);
+                        int b = super.read();
+                        if (b >= 0) {
+                            requestStarted();
+                        }
+                        return b;
+                    }
 
-                // Validate that the input is valid JSON. If not, send an error response.
-                JSONObject res = isValid(input);
-                if (res.has("ok") && !res.getBoolean("ok")) {
-                    writeOut(os, res);
-                    continue;
-                }
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        awaitingInput(in);
+                        int n = super.read(b, off, len);
+                        if (n > 0) {
+                            requestStarted();
+                        }
+                        return n;
+                    }
+                };
+                socketOut = new FilterOutputStream(output) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
 
-                // Process the request.
-                JSONObject req;
-                try {
-                    req = new JSONObject(input);
-                } catch (JSONException je) {
-                    logger.error("[{}] Failed to parse JSON request: {}", clientSocket.getRemoteSocketAddress(), je.getMessage());
-                    JSONObject errorRes = new JSONObject();
-                    errorRes.put("ok", false);
-                    errorRes.put("message", "Invalid JSON format.");
-                    writeOut(os, errorRes);
-                    continue;
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush(); // written now or held back by the flush policy
+                        responseSent(); // every response ends with a flush
+                    }
+                };
+            } catch (IOException e) {
+                logger.error("[{}] Exception handling client: {}", clientSocket.getRemoteSocketAddress(), e.getMessage(), e);
+                stats.connectionClosed();
+                closeSocket();
+                return;
+            }
+            Compression compression = null; // set by a negotiate request
+            try (
+                    // Wrap the raw input stream so we can check the magic header first.
+                    BufferedInputStream bis = new BufferedInputStream(socketIn);
+                    DataOutputStream os = new DataOutputStream(socketOut)
+            ) {
+                this.bis = bis;
+                byte[] header = new byte[4];
+                int readCount = bis.read(header);
+                final Question[] currentQuizQuestionHolder = new Question[1];
+                if (readCount == 4 && Arrays.equals(header, BinaryProtocol.PREFACE)) {
+                    // Compact binary protocol, the preface is not part of the first frame.
+                    awaitRequest(bis.available() > 0);
+                    BinaryProtocol.serve(new DataInputStream(bis), os, currentQuizQuestionHolder, clientSocket.getRemoteSocketAddress(), deadline);
+                    return;
                 }
-
-                res = testField(req, "type");
-                if (!res.getBoolean("ok")) { // no "type" header provided
-                    res = noType(req);
-                    writeOut(os, res);
-                    continue;
+                if (readCount != 4 || !Arrays.equals(header, JAVA_MAGIC_HEADER)) {
+                    // Log the received header as a hex string for diagnostic purposes.
+                    String hexHeader = DatatypeConverter.printHexBinary(header);
+                    logger.warn("[{}] Received invalid magic header: {}. Connection will be closed.", clientSocket.getRemoteSocketAddress(), hexHeader);
+                    clientSocket.close();
+                    return;
                 }
+                // Requests are serialized Strings, decoded directly rather than deserialized.
+                ReadTimer timer = new ReadTimer(bis);
+                WireFormat.StringReader in = new WireFormat.StringReader(timer);
+                awaitRequest(bis.available() > 0);
+                SocketAddress peer = clientSocket.getRemoteSocketAddress();
+                Exchange exchange = new Exchange();
+                ResponseWriter writer = new ResponseWriter(); // reused for every response
+                exchange.writer = writer;
 
+                // Process the connection using your protocol as before.
+                boolean chunked = false; // switched by a negotiate request
+                boolean connected = true;
+                while (connected) {
+                    String input = "";
+                    try {
+                        input = in.read();
+                        deadline.busy();
+                        logger.debug("[{}] Received request: {}", peer, input);
+                    } catch (EOFException eof) {
+                        logger.warn("[{}] Client disconnected unexpectedly: {}", clientSocket.getRemoteSocketAddress(), eof.getMessage());
+                        break;
+                    } catch (StreamCorruptedException sce) {
+                        logger.warn("[{}] Stream corrupted: {}", clientSocket.getRemoteSocketAddress(), sce.getMessage());
+                        break;
+                    } catch (Exception e) {
+                        if (clientSocket.isClosed()) {
+                            logger.debug("[{}] Connection closed by the server", peer);
+                        } else {
+                            logger.warn("[{}] Exception reading from client: {}. Possibly bad protocol data.", clientSocket.getRemoteSocketAddress(), e.getMessage());
+                        }
+                        break;
+                    }
+
+                    exchange.begin(input, input.length(), timer.take());
+                    int before = os.size();
+                    JSONObject res = handleRequest(input, compression, currentQuizQuestionHolder, peer, exchange);
+                    if (chunked) {
+                        writeChunked(os, res, compression);
+                    } else {
+                        writeOut(os, res, writer);
+                    }
+                    exchange.bytesOut = os.size() - before;
+                    chunked = framingAfter(exchange, res, chunked);
+                    exchange.writer = chunked ? null : writer;
+                    compression = compressionAfter(exchange, res, compression, peer);
+                    completed(peer, exchange);
+                }
+                // The connection ends on a read error; answers held back for earlier requests still go out.
+                output.flushHeld();
+            } catch (Exception e) {
+                if (clientSocket.isClosed()) {
+                    logger.debug("[{}] Connection closed by the server", clientSocket.getRemoteSocketAddress());
+                } else {
+                    logger.error("[{}] Exception handling client: {}", clientSocket.getRemoteSocketAddress(), e.getMessage(), e);
+                }
+            } finally {
+                if (compression != null) {
+                    compression.finished(clientSocket.getRemoteSocketAddress()); // also releases zlib's native memory
+                }
+                stats.connectionClosed();
                 try {
-                    // Use switch or if-else to process request by type.
-                    String reqType = req.getString("type");
-                    switch (reqType) {
-                        case "echo":
-                            res = echo(req);
-                            break;
-                        case "add":
-                            res = add(req);
-                            break;
-                        case "addmany":
-                            res = addmany(req);
-                            break;
-                        case "stringconcatenation":
-                            // If the request contains the "strings" field (an array),
-                            // then call the helper that concatenates arrays.
-                            if (req.has("strings"))
-                                res = concatenation(req);
-                            else
-                                res = stringConcatenation(req);
-                            break;
-                        case "quizgame":
-                            // If the request contains the "options" field,
-                            // then it’s the multiple‐choice version; call the helper method for that.
-                            if (req.has("options"))
-                                res = quiz(req);
-                            else
-                                res = quizGame(req, currentQuizQuestionHolder);
-                            break;
-                        default:
-                            res = wrongType(req);
-                            break;
+                    if (!clientSocket.isClosed()) {
+                        clientSocket.close();
                     }
+                    logger.info("Closed connection to client {}", clientSocket.getRemoteSocketAddress());
                 } catch (Exception e) {
-                    logger.error("[{}] Exception processing request: {}", clientSocket.getRemoteSocketAddress(), e.getMessage(), e);
-                    res = new JSONObject();
-                    res.put("ok", false);
-                    res.put("message", "Internal server error while processing request.");
+                    logger.error("Error closing client socket: {}", e.getMessage(), e);
                 }
-                writeOut(os, res);
             }
-        } catch (Exception e) {
-            logger.error("[{}] Exception handling client: {}", clientSocket.getRemoteSocketAddress(), e.getMessage(), e);
-        } finally {
-            try {
-                if (!clientSocket.isClosed()) {
-                    clientSocket.close();
+        }
+    }
+
+    /**
+     * Validates, parses and dispatches one request string and returns the response to send.
+     * Shared by the blocking connection loop and the NIO engine.
+     *
+     * @param input                     the request as received from the client
+     * @param currentQuizQuestionHolder the connection's current quiz question
+     * @param peer                      the client address, used for logging
+     * @return the response object
+     */
+    static JSONObject handleRequest(String input, Question[] currentQuizQuestionHolder, SocketAddress peer) {
+        return handleRequest(input, currentQuizQuestionHolder, peer, null);
+    }
+
+    /**
+     * Same as {@link #handleRequest(String, Question[], SocketAddress)}, also noting the request
+     * type and outcome in the given exchange.
+     *
+     * @param exchange the connection's exchange record, may be null
+     */
+    static JSONObject handleRequest(String input, Question[] currentQuizQuestionHolder, SocketAddress peer, Exchange exchange) {
+        return handleRequest(input, currentQuizQuestionHolder, peer, exchange, null);
+    }
+
+    /**
+     * @param done null to wait for services with their own executor, see
+     *             {@link #dispatch(JSONObject, Question[], SocketAddress, Exchange, boolean, Consumer)}
+     */
+    private static JSONObject handleRequest(String input, Question[] currentQuizQuestionHolder, SocketAddress peer,
+                                            Exchange exchange, Consumer<JSONObject> done) {
+        // Parse the request once. Fields are decoded lazily when a handler reads them.
+        RequestView req;
+        try {
+            req = RequestView.parse(input);
+        } catch (JSONException je) {
+            return notJson();
+        }
+        if (!req.isObject()) {
+            logger.error("[{}] Failed to parse JSON request: top level is an array", peer);
+            JSONObject errorRes = new JSONObject();
+            errorRes.put("ok", false);
+            errorRes.put("message", "Invalid JSON format.");
+            return errorRes;
+        }
+        if (exchange != null) {
+            exchange.parsedNanos = System.nanoTime();
+        }
+        return dispatch(req, currentQuizQuestionHolder, peer, exchange, true, done);
+    }
+
+    /**
+     * Stamps the end of an exchange whose response has been written and records it in the
+     * statistics and the access log.
+     */
+    static void completed(SocketAddress peer, Exchange exchange) {
+        exchange.endNanos = System.nanoTime();
+        stats.record(exchange);
+        if (accessLog != null) {
+            accessLog.record(peer, exchange);
+        }
+    }
+
+    /**
+     * Runs the service named by the request's "type" field.
+     *
+     * @param req                       the parsed request
+     * @param currentQuizQuestionHolder the connection's current quiz question
+     * @param peer                      the client address, used for logging
+     * @return the response object, carrying the request's id if it had one
+     */
+    static JSONObject dispatch(JSONObject req, Question[] currentQuizQuestionHolder, SocketAddress peer) {
+        return dispatch(req, currentQuizQuestionHolder, peer, null);
+    }
+
+    /**
+     * Same as {@link #dispatch(JSONObject, Question[], SocketAddress)}, also noting the request
+     * type, outcome and handler timing in the given exchange.
+     *
+     * @param exchange the connection's exchange record, may be null
+     */
+    static JSONObject dispatch(JSONObject req, Question[] currentQuizQuestionHolder, SocketAddress peer, Exchange exchange) {
+        return dispatch(req, currentQuizQuestionHolder, peer, exchange, true, null);
+    }
+
+    /**
+     * @param isolated false to run services on this thread even if they have their own executor
+     * @param done     null to wait for a service with its own executor; otherwise this returns
+     *                 {@link ServiceRegistry#DEFERRED} for such a service and its response goes to
+     *                 done on the executor's thread
+     */
+    private static JSONObject dispatch(JSONObject req, Question[] currentQuizQuestionHolder, SocketAddress peer,
+                                       Exchange exchange, boolean isolated, Consumer<JSONObject> done) {
+        if (!req.has("type")) { // checked without building a response, most requests have one
+            return withId(req, noType(req));
+        }
+
+        JSONObject res;
+        try {
+            String reqType = req.getString("type");
+            if (exchange != null) {
+                exchange.type = reqType;
+                exchange.handlerStartNanos = System.nanoTime();
+            }
+            res = services.handle(reqType, req, currentQuizQuestionHolder, peer, isolated,
+                    exchange != null ? exchange.writer : null, done == null ? null : (result, failure) ->
+                            done.accept(handled(req, failure == null ? result : internalError(peer, failure), exchange)));
+            if (res == ServiceRegistry.DEFERRED) {
+                return res;
+            }
+            if (res == ResponseWriter.WRITTEN) {
+                exchange.handledNanos = System.nanoTime();
+                exchange.ok = exchange.writer.ok();
+                exchange.writer.end(req.opt("id"));
+                return res;
+            }
+            if (res == null) {
+                if (exchange != null) {
+                    exchange.type = Exchange.UNKNOWN_TYPE; // do not log client-chosen names
                 }
-                logger.info("Closed connection to client {}", clientSocket.getRemoteSocketAddress());
-            } catch (Exception e) {
-                logger.error("Error closing client socket: {}", e.getMessage(), e);
+                res = wrongType(req);
             }
+        } catch (Exception e) {
+            res = internalError(peer, e);
         }
+        return handled(req, res, exchange);
+    }
+
+    private static JSONObject internalError(SocketAddress peer, Throwable e) {
+        logger.error("[{}] Exception processing request: {}", peer, e.getMessage(), e);
+        JSONObject res = new JSONObject();
+        res.put("ok", false);
+        res.put("message", "Internal server error while processing request.");
+        return res;
+    }
+
+    // Notes the outcome in the exchange and copies the request id into the response.
+    private static JSONObject handled(JSONObject req, JSONObject res, Exchange exchange) {
+        if (exchange != null) {
+            exchange.handledNanos = System.nanoTime();
+            exchange.ok = res.getBoolean("ok");
+        }
+        return withId(req, res);
+    }
+
+    /**
+     * The built-in services. addmany and stringconcatenation can be made arbitrarily expensive by
+     * the client, so each gets its own executor of one thread per core. quizgame gets one as well
+     * because adding a question waits until the question log is forced to disk.
+     */
+    private static ServiceRegistry defaultServices() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ServiceRegistry registry = new ServiceRegistry();
+        // The most frequent requests write their responses without building a JSONObject.
+        registry.register("echo", (req, holder, peer) -> echo(req), SockServer::echo);
+        registry.register("add", (req, holder, peer) -> add(req), SockServer::add);
+        registry.register("addmany", (req, holder, peer) -> addmany(req), cores, 64 * cores);
+        // With a "strings" array it is the many-strings variant.
+        registry.register("stringconcatenation",
+                (req, holder, peer) -> req.has("strings") ? concatenation(req) : stringConcatenation(req), cores, 64 * cores);
+        // With an "options" field it is the multiple-choice variant, which needs no session.
+        registry.register("quizgame", (req, holder, peer) -> req.has("options") ? quiz(req) : quizGame(req, holder),
+                cores, 64 * cores);
+        registry.register("batch", SockServer::batch);
+        registry.register("stats", (req, holder, peer) -> stats());
+        registry.register("negotiate", (req, holder, peer) -> negotiate(req));
+        return registry;
+    }
+
+    /**
+     * Copies the optional correlation "id" of a request into its response, so clients that
+     * keep several requests in flight can match responses to requests.
+     */
+    static JSONObject withId(JSONObject req, JSONObject res) {
+        Object id = req.opt("id");
+        if (id != null) {
+            res.put("id", id);
+        }
+        return res;
     }
 
     /**
      * Sends the response using the provided DataOutputStream.
      */
     static void writeOut(DataOutputStream os, JSONObject res) {
+        writeOut(os, res, new ResponseWriter());
+    }
+
+    /**
+     * Sends the response using the provided DataOutputStream, encoding it with the connection's writer.
+     *
+     * @param res the response, or {@link ResponseWriter#WRITTEN} if it is already in the writer
+     */
+    static void writeOut(DataOutputStream os, JSONObject res, ResponseWriter writer) {
         try {
-            os.writeUTF(res.toString());
+            if (res == AdmissionControl.BUSY) {
+                AdmissionControl.writeBusy(os, false);
+                os.flush();
+                return;
+            }
+            if (res != ResponseWriter.WRITTEN) {
+                writer.write(res);
+            }
+            if (!writer.fits()) {
+                logger.warn("Response of {} bytes does not fit writeUTF, sending an error instead", writer.length());
+                writer.tooLarge();
+            }
+            writer.writeTo(os);
             os.flush();
-            logger.info("Sent response: {}", res);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sent response: {}", writer.text());
+            }
+        } catch (Exception e) {
+            logger.error("Error writing response: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes a response with chunked framing, encoding it straight into the chunks.
+     *
+     * @param compression the connection's compression, null if it is off
+     */
+    static void writeChunked(DataOutputStream os, JSONObject res, Compression compression) {
+        if (res == AdmissionControl.BUSY) {
+            try {
+                AdmissionControl.writeBusy(os, true);
+                os.flush();
+            } catch (IOException e) {
+                logger.error("Error writing response: {}", e.getMessage(), e);
+            }
+            return;
+        }
+        ChunkedFraming.Output chunks = new ChunkedFraming.Output(
+                chunk -> os.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining()));
+        OutputStream body = compression != null ? compression.output(chunks) : chunks;
+        try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+            res.write(writer);
         } catch (Exception e) {
             logger.error("Error writing response: {}", e.getMessage(), e);
+            return;
+        }
+        try {
+            os.flush();
+            logger.debug("Sent chunked response of {} bytes", chunks.written());
+        } catch (IOException e) {
+            logger.error("Error writing response: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the message of the error sent in place of a response too long for writeUTF, telling
+     * the client how to receive large responses
+     */
+    static String tooLargeMessage(int length) {
+        return "Response of " + length + " bytes is too large; send {\"type\":\"negotiate\",\"framing\":\"chunked\"} first to receive large responses.";
+    }
+
+    /**
+     * @return whether the connection's next responses are chunked, after the given exchange
+     */
+    static boolean framingAfter(Exchange exchange, JSONObject res, boolean chunked) {
+        if (exchange.ok && "negotiate".equals(exchange.type)) {
+            return ChunkedFraming.FRAMING_CHUNKED.equals(res.getString("framing"));
+        }
+        return chunked;
+    }
+
+    /**
+     * @return the connection's compression after the given exchange, null if it is off
+     */
+    static Compression compressionAfter(Exchange exchange, JSONObject res, Compression compression, SocketAddress peer) {
+        if (!exchange.ok || !"negotiate".equals(exchange.type)) {
+            return compression;
+        }
+        boolean deflate = Compression.DEFLATE.equals(res.getString("compression"));
+        if (deflate && compression == null) {
+            return new Compression();
+        }
+        if (!deflate && compression != null) {
+            compression.finished(peer);
+            return null;
+        }
+        return compression;
+    }
+
+    /**
+     * Same as {@link #handleRequest(String, Question[], SocketAddress, Exchange)} for a request
+     * read from a connection, which may be compressed and is subject to admission control: when
+     * too many requests are in flight it returns {@link AdmissionControl#BUSY} without parsing.
+     *
+     * @param compression the connection's compression, null if it is off
+     */
+    static JSONObject handleRequest(String input, Compression compression, Question[] currentQuizQuestionHolder,
+                                    SocketAddress peer, Exchange exchange) {
+        return handleRequest(input, compression, currentQuizQuestionHolder, peer, exchange, null);
+    }
+
+    /**
+     * Same as {@link #handleRequest(String, Compression, Question[], SocketAddress, Exchange)},
+     * without waiting for services that have their own executor if done is given: the request
+     * then counts as in flight until its response has been passed to done.
+     *
+     * @param done null to wait; otherwise this may return {@link ServiceRegistry#DEFERRED} and pass
+     *             the response to done later, on the service's thread
+     */
+    static JSONObject handleRequest(String input, Compression compression, Question[] currentQuizQuestionHolder,
+                                    SocketAddress peer, Exchange exchange, Consumer<JSONObject> done) {
+        if (!admission.tryAcquire()) {
+            return AdmissionControl.BUSY; // shed before parsing; the writers send it pre-encoded
+        }
+        boolean deferred = false;
+        try {
+            if (compression != null && Compression.isCompressed(input)) {
+                try {
+                    input = compression.inflate(input);
+                } catch (DataFormatException | IllegalArgumentException e) {
+                    logger.warn("[{}] Could not decompress request: {}", peer, e.getMessage());
+                    JSONObject res = new JSONObject();
+                    res.put("ok", false);
+                    res.put("message", "Request could not be decompressed.");
+                    return res;
+                }
+                exchange.request = input;
+            }
+            JSONObject res = handleRequest(input, currentQuizQuestionHolder, peer, exchange, done == null ? null : result -> {
+                admission.release(System.nanoTime() - exchange.startNanos);
+                done.accept(result);
+            });
+            deferred = res == ServiceRegistry.DEFERRED;
+            return res;
+        } finally {
+            if (!deferred) {
+                admission.release(System.nanoTime() - exchange.startNanos);
+            }
         }
     }
 
@@ -238,20 +919,20 @@ public class SockServer {
      */
     public static JSONObject isValid(String json) {
         try {
-            new JSONObject(json);
+            RequestView.parse(json);
         } catch (JSONException e) {
-            try {
-                new JSONArray(json);
-            } catch (JSONException ne) {
-                JSONObject res = new JSONObject();
-                res.put("ok", false);
-                res.put("message", "req not JSON");
-                return res;
-            }
+            return notJson();
         }
         return new JSONObject();
     }
 
+    private static JSONObject notJson() {
+        JSONObject res = new JSONObject();
+        res.put("ok", false);
+        res.put("message", "req not JSON");
+        return res;
+    }
+
     /**
      * Checks if a specific field exists in the request.
      */
@@ -265,9 +946,56 @@ public class SockServer {
         return res.put("ok", true);
     }
 
+    // Stats service handler: request counts, error counts and latency percentiles.
+    static JSONObject stats() {
+        JSONObject res = stats.snapshot();
+        res.put("admission", admission.snapshot());
+        if (accessLog != null) {
+            res.put("accessLog", new JSONObject().put("dropped", accessLog.droppedCount()));
+        }
+        res.put("type", "stats");
+        res.put("ok", true);
+        return res;
+    }
+
+    // Negotiate service handler: switches how the following responses on this connection are framed.
+    static JSONObject negotiate(JSONObject req) {
+        JSONObject res = testField(req, "framing");
+        res.put("type", "negotiate");
+        if (!res.getBoolean("ok")) {
+            return res;
+        }
+        Object framing = req.get("framing");
+        if (!ChunkedFraming.FRAMING_CHUNKED.equals(framing) && !ChunkedFraming.FRAMING_UTF.equals(framing)) {
+            res.put("ok", false);
+            res.put("message", "Field framing needs to be \"" + ChunkedFraming.FRAMING_CHUNKED + "\" or \""
+                    + ChunkedFraming.FRAMING_UTF + "\"");
+            return res;
+        }
+        Object compression = req.opt("compression");
+        if (compression == null) {
+            compression = Compression.NONE;
+        } else if (!Compression.DEFLATE.equals(compression) && !Compression.NONE.equals(compression)) {
+            res.put("ok", false);
+            res.put("message", "Field compression needs to be \"" + Compression.DEFLATE + "\" or \""
+                    + Compression.NONE + "\"");
+            return res;
+        } else if (Compression.DEFLATE.equals(compression) && !ChunkedFraming.FRAMING_CHUNKED.equals(framing)) {
+            res.put("ok", false);
+            res.put("message", "Compression needs framing \"" + ChunkedFraming.FRAMING_CHUNKED + "\"");
+            return res;
+        }
+        res.put("framing", framing);
+        res.put("compression", compression);
+        if (Compression.DEFLATE.equals(compression)) {
+            res.put("threshold", Compression.THRESHOLD);
+        }
+        return res;
+    }
+
     // Echo service handler
     static JSONObject echo(JSONObject req) {
-        logger.info("Processing echo request: {}", req);
+        logger.debug("Processing echo request: {}", req);
         JSONObject res = testField(req, "data");
         if (res.getBoolean("ok")) {
             if (!req.get("data").getClass().getName().equals("java.lang.String")) {
@@ -277,14 +1005,38 @@ public class SockServer {
             }
 
             res.put("type", "echo");
-            res.put("echo", "Here is your echo: " + req.getString("data"));
+            res.put("echo", echoText(req.getString("data")));
         }
         return res;
     }
 
+    // Echo response written directly; errors are left to echo(JSONObject).
+    static boolean echo(JSONObject req, ResponseWriter out) {
+        logger.debug("Processing echo request: {}", req);
+        Object data = req.opt("data");
+        if (!(data instanceof String)) {
+            return false;
+        }
+        out.begin().field("ok", true).field("type", "echo").field("echo", ECHO_PREFIX, (String) data);
+        return true;
+    }
+
+    // Add response written directly; errors are left to add(JSONObject).
+    static boolean add(JSONObject req, ResponseWriter out) {
+        logger.debug("Processing add request: {}", req);
+        int sum;
+        try {
+            sum = req.getInt("num1") + req.getInt("num2");
+        } catch (JSONException e) {
+            return false; // missing or not an int
+        }
+        out.begin().field("ok", true).field("type", "add").field("result", sum);
+        return true;
+    }
+
     // Add service handler
     static JSONObject add(JSONObject req) {
-        logger.info("Processing add request: {}", req);
+        logger.debug("Processing add request: {}", req);
         JSONObject res1 = testField(req, "num1");
         if (!res1.getBoolean("ok")) return res1;
         JSONObject res2 = testField(req, "num2");
@@ -304,30 +1056,51 @@ public class SockServer {
 
     // Add many service handler
     static JSONObject addmany(JSONObject req) {
-        logger.info("Processing addmany request: {}", req);
+        logger.debug("Processing addmany request: {}", req);
         JSONObject res = testField(req, "nums");
         if (!res.getBoolean("ok")) return res;
 
-        int result = 0;
-        JSONArray array = req.getJSONArray("nums");
-        for (int i = 0; i < array.length(); i++) {
-            try {
-                result += array.getInt(i);
-            } catch (JSONException e) {
-                res.put("ok", false);
-                res.put("message", "Values in array need to be ints");
-                return res;
+        // Plain integer arrays are read straight from the request text into a long[].
+        long[] nums = req instanceof RequestView ? ((RequestView) req).longArray("nums") : null;
+        if (nums == null) {
+            JSONArray array = req.getJSONArray("nums");
+            nums = new long[array.length()];
+            for (int i = 0; i < nums.length; i++) {
+                try {
+                    nums[i] = exactLong(array.get(i));
+                } catch (NumberFormatException e) {
+                    res.put("ok", false);
+                    res.put("message", "Values in array need to be ints");
+                    return res;
+                }
             }
         }
         res.put("ok", true);
         res.put("type", "addmany");
-        res.put("result", result);
+        // exact: a long, or a BigInteger for sums beyond the long range
+        res.put("result", AddMany.sum(nums));
         return res;
     }
 
+    /**
+     * An element of an addmany array. JSONArray.getLong would truncate fractions and wrap values
+     * beyond the long range, so only integers and strings holding one are accepted.
+     *
+     * @throws NumberFormatException if the value is not an integer in long range
+     */
+    private static long exactLong(Object value) {
+        if (value instanceof Integer || value instanceof Long) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            return Long.parseLong((String) value);
+        }
+        throw new NumberFormatException("Not an integer: " + value);
+    }
+
     // String concatenation service handler
     static JSONObject stringConcatenation(JSONObject req) {
-        logger.info("Processing stringconcatenation request: {}", req);
+        logger.debug("Processing stringconcatenation request: {}", req);
         JSONObject res = testField(req, "string1");
         if (!res.getBoolean("ok")) return res;
         res = testField(req, "string2");
@@ -355,11 +1128,13 @@ public class SockServer {
 
     // Quiz game service handler
     static JSONObject quizGame(JSONObject req, Question[] currentQuizQuestionHolder) {
-        logger.info("Processing quizgame request: {}", req);
+        logger.debug("Processing quizgame request: {}", req);
         JSONObject response = new JSONObject();
         response.put("type", "quizgame");
 
-        if (req.has("addQuestion")) {
+        if (req.has("addQuestions")) {
+            return addQuestions(req, response);
+        } else if (req.has("addQuestion")) {
             boolean addQuestion = req.getBoolean("addQuestion");
             if (addQuestion) {
                 JSONObject resTest = testField(req, "question");
@@ -379,18 +1154,27 @@ public class SockServer {
                 }
                 String questionText = req.getString("question");
                 String answer = req.getString("answer");
-                quizQuestions.add(new Question(questionText, answer));
+                Boolean added = addQuestion(questionText, answer);
+                if (added == null) {
+                    response.put("ok", false);
+                    response.put("message", "Could not store the question, please try again.");
+                    return response;
+                }
+                if (!added) {
+                    response.put("ok", false);
+                    response.put("message", DUPLICATE_QUESTION);
+                    return response;
+                }
 
                 response.put("ok", true);
                 return response;
             } else {
-                if (quizQuestions.isEmpty()) {
+                Question selected = randomQuestion();
+                if (selected == null) {
                     response.put("ok", false);
                     response.put("message", "No quiz questions available.");
                     return response;
                 }
-                int index = (int) (Math.random() * quizQuestions.size());
-                Question selected = quizQuestions.get(index);
                 currentQuizQuestionHolder[0] = selected;
                 response.put("ok", true);
                 response.put("question", selected.questionText);
@@ -408,16 +1192,15 @@ public class SockServer {
                 return response;
             }
             String clientAnswer = req.getString("answer").trim();
-            String correctAnswer = currentQuizQuestionHolder[0].answer.trim();
-            boolean result = clientAnswer.equalsIgnoreCase(correctAnswer);
+            boolean result = isCorrectAnswer(currentQuizQuestionHolder[0], clientAnswer);
             response.put("ok", true);
             response.put("result", result);
             if (!result) {
                 response.put("question", currentQuizQuestionHolder[0].questionText);
-                logger.info("Quiz answer incorrect. Client answer: {}", clientAnswer);
+                logger.debug("Quiz answer incorrect. Client answer: {}", clientAnswer);
             } else {
                 currentQuizQuestionHolder[0] = null;
-                logger.info("Quiz answer correct: {}", clientAnswer);
+                logger.debug("Quiz answer correct: {}", clientAnswer);
             }
             return response;
         } else {
@@ -427,6 +1210,227 @@ public class SockServer {
         }
     }
 
+    /**
+     * Bulk import: adds every question of the addQuestions array whose normalized text is not in
+     * the quiz yet and reports per item whether it was added, a duplicate or invalid.
+     */
+    private static JSONObject addQuestions(JSONObject req, JSONObject response) {
+        JSONArray items;
+        try {
+            items = req.getJSONArray("addQuestions");
+        } catch (JSONException e) {
+            response.put("ok", false);
+            response.put("message", "Field addQuestions needs to be of type: JSON Array");
+            return response;
+        }
+        if (items.length() > MAX_QUESTIONS_PER_REQUEST) {
+            response.put("ok", false);
+            response.put("message", "addQuestions may contain at most " + MAX_QUESTIONS_PER_REQUEST + " questions");
+            return response;
+        }
+
+        List<Question> questions = new ArrayList<>(items.length());
+        boolean[] valid = new boolean[items.length()];
+        for (int i = 0; i < items.length(); i++) {
+            Object item = items.opt(i);
+            if (item instanceof JSONObject && ((JSONObject) item).opt("question") instanceof String
+                    && ((JSONObject) item).opt("answer") instanceof String) {
+                questions.add(new Question(((JSONObject) item).getString("question"), ((JSONObject) item).getString("answer")));
+                valid[i] = true;
+            }
+        }
+        boolean[] added = addQuestionsIfAbsent(questions);
+        if (added == null) {
+            response.put("ok", false);
+            response.put("message", "Could not store the questions, please try again.");
+            return response;
+        }
+
+        JSONArray results = new JSONArray();
+        int addedCount = 0;
+        int duplicates = 0;
+        int next = 0;
+        for (int i = 0; i < valid.length; i++) {
+            if (!valid[i]) {
+                results.put("invalid");
+            } else if (added[next++]) {
+                results.put("added");
+                addedCount++;
+            } else {
+                results.put("duplicate");
+                duplicates++;
+            }
+        }
+        response.put("ok", true);
+        response.put("added", addedCount);
+        response.put("duplicates", duplicates);
+        response.put("invalid", valid.length - addedCount - duplicates);
+        response.put("results", results);
+        return response;
+    }
+
+    // Batch service handler
+    static JSONObject batch(JSONObject req, Question[] currentQuizQuestionHolder, SocketAddress peer) {
+        JSONObject res = testField(req, "requests");
+        if (!res.getBoolean("ok")) return res;
+
+        JSONArray requests;
+        try {
+            requests = req.getJSONArray("requests");
+        } catch (JSONException e) {
+            res.put("ok", false);
+            res.put("message", "Field requests needs to be of type: JSON Array");
+            return res;
+        }
+        if (requests.length() > MAX_BATCH_SIZE) {
+            res.put("ok", false);
+            res.put("message", "Batch may contain at most " + MAX_BATCH_SIZE + " requests");
+            return res;
+        }
+
+        JSONObject[] responses = new JSONObject[requests.length()];
+        BatchTask parallel = null;
+        if (responses.length >= BATCH_PARALLEL_THRESHOLD) {
+            // Stateless requests run on the fork-join pool while quiz requests run here in order.
+            parallel = new BatchTask(requests, responses, 0, responses.length, peer);
+            BATCH_POOL.execute(parallel);
+        }
+        for (int i = 0; i < responses.length; i++) {
+            Object entry = requests.opt(i);
+            if (parallel == null || isSessionRequest(entry)) {
+                responses[i] = batchEntry(entry, currentQuizQuestionHolder, peer);
+            }
+        }
+        if (parallel != null) {
+            parallel.join();
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("type", "batch");
+        response.put("ok", true);
+        response.put("responses", new JSONArray(Arrays.asList(responses)));
+        return response;
+    }
+
+    /**
+     * Quiz game requests use the connection's current question, so inside a batch they keep
+     * their order and run on the connection's thread. Everything else is stateless.
+     */
+    private static boolean isSessionRequest(Object entry) {
+        if (!(entry instanceof JSONObject)) {
+            return false;
+        }
+        JSONObject sub = (JSONObject) entry;
+        return "quizgame".equals(sub.opt("type")) && !sub.has("options");
+    }
+
+    private static JSONObject batchEntry(Object entry, Question[] currentQuizQuestionHolder, SocketAddress peer) {
+        if (!(entry instanceof JSONObject)) {
+            JSONObject res = new JSONObject();
+            res.put("ok", false);
+            res.put("message", "Batch entries need to be of type: JSON Object");
+            return res;
+        }
+        JSONObject sub = (JSONObject) entry;
+        if ("batch".equals(sub.opt("type")) || "negotiate".equals(sub.opt("type"))) {
+            JSONObject res = new JSONObject();
+            res.put("ok", false);
+            res.put("message", "Type " + sub.opt("type") + " is not supported inside a batch.");
+            return withId(sub, res);
+        }
+        return dispatch(sub, currentQuizQuestionHolder, peer, null, false, null);
+    }
+
+    /**
+     * Fork-join task running the stateless entries of a batch, splitting the range until it is
+     * small enough to run directly.
+     */
+    private static final class BatchTask extends RecursiveAction {
+        private static final int LEAF_SIZE = 256;
+        private final JSONArray requests;
+        private final JSONObject[] responses;
+        private final int from;
+        private final int to;
+        private final SocketAddress peer;
+
+        BatchTask(JSONArray requests, JSONObject[] responses, int from, int to, SocketAddress peer) {
+            this.requests = requests;
+            this.responses = responses;
+            this.from = from;
+            this.to = to;
+            this.peer = peer;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchTask(requests, responses, from, mid, peer),
+                        new BatchTask(requests, responses, mid, to, peer));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                Object entry = requests.opt(i);
+                if (!isSessionRequest(entry)) {
+                    // stateless requests never touch the quiz holder
+                    responses[i] = batchEntry(entry, null, peer);
+                }
+            }
+        }
+    }
+
+    // Service logic shared by the JSON handlers and the binary protocol
+
+    static final String ECHO_PREFIX = "Here is your echo: ";
+
+    static String echoText(String data) {
+        return ECHO_PREFIX + data;
+    }
+
+    static final String DUPLICATE_QUESTION = "This question is already in the quiz.";
+
+    /**
+     * Adds a quiz question unless the quiz has one with the same normalized text. With a
+     * question log it is on disk when this returns.
+     *
+     * @return whether it was added, or null if the question log could not be written
+     */
+    static Boolean addQuestion(String questionText, String answer) {
+        boolean[] added = addQuestionsIfAbsent(Collections.singletonList(new Question(questionText, answer)));
+        return added != null ? added[0] : null;
+    }
+
+    /**
+     * Adds the questions whose normalized text is not in the quiz yet. With a question log they
+     * are on disk when this returns.
+     *
+     * @return for each question, whether it was added, or null if the question log could not be written
+     */
+    static boolean[] addQuestionsIfAbsent(List<Question> questions) {
+        if (questionLog == null) {
+            return quizQuestions.putAllIfAbsent(questions);
+        }
+        try {
+            return questionLog.addAllIfAbsent(questions);
+        } catch (IOException e) {
+            logger.error("Error writing questions to the question log: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Picks a random quiz question.
+     *
+     * @return the question, or null if there are no questions
+     */
+    static Question randomQuestion() {
+        return quizQuestions.random();
+    }
+
+    static boolean isCorrectAnswer(Question question, String clientAnswer) {
+        return clientAnswer.trim().equalsIgnoreCase(question.answer.trim());
+    }
+
     // Handler for unknown type requests.
     static JSONObject wrongType(JSONObject req) {
         logger.warn("Wrong type request received: {}", req);
@@ -446,7 +1450,7 @@ public class SockServer {
     }
 
     static JSONObject quiz(JSONObject req) {
-        logger.info("Processing quiz request: {}", req);
+        logger.debug("Processing quiz request: {}", req);
         JSONObject response = new JSONObject();
         response.put("type", "quizgame");
         try {
@@ -484,7 +1488,7 @@ public class SockServer {
     //Helper methods to handle combined requests
 
     static JSONObject concatenation(JSONObject req) {
-        logger.info("Processing concatenation request: {}", req);
+        logger.debug("Processing concatenation request: {}", req);
         JSONObject res = testField(req, "strings");
         if (!res.getBoolean("ok")) {
             return res;
@@ -515,10 +1519,50 @@ public class SockServer {
         return response;
     }
 
-    // A simple class to encapsulate a quiz question and its answer
+    /**
+     * Input stream that remembers when a read first returned data, i.e. when the first byte of
+     * the next request arrived, without counting the time spent waiting for it.
+     */
+    private static final class ReadTimer extends FilterInputStream {
+        private long firstReadNanos;
+
+        ReadTimer(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && firstReadNanos == 0) {
+                firstReadNanos = System.nanoTime();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0 && firstReadNanos == 0) {
+                firstReadNanos = System.nanoTime();
+            }
+            return n;
+        }
+
+        /**
+         * @return the time of the first read since the last call, or 0 if nothing was read
+         */
+        long take() {
+            long nanos = firstReadNanos;
+            firstReadNanos = 0;
+            return nanos;
+        }
+    }
+
+    // A simple class to encapsulate a quiz question and its answer.
+    // Immutable, so questions can be shared between client threads without locking.
     static class Question {
-        String questionText;
-        String answer;
+        final String questionText;
+        final String answer;
 
         Question(String questionText, String answer) {
             this.questionText = questionText;
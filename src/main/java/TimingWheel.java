@@ -0,0 +1,205 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel for connection deadlines: arming, moving and cancelling a timer are O(1)
+ * however many timers exist, at the price of firing up to one tick late.
+ * <p>
+ * The wheel is an array of buckets, each a linked list of timers, and a single thread that visits
+ * one bucket per tick. A timer sits in the bucket of its deadline, with the number of full turns
+ * left before it is due. Timers are reusable: pushing a deadline later is a single volatile write,
+ * since the wheel thread re-files a timer whose deadline has moved when it reaches its bucket.
+ * Only moving a deadline earlier than its bucket, or arming a timer that is not in the wheel,
+ * hands the timer to the wheel thread through a queue. Buckets are only ever touched by the wheel
+ * thread, so they need no locking.
+ */
+final class TimingWheel {
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final long tickNanos;
+    private final Timer[] buckets; // heads of the bucket lists
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timer> incoming = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startNanos;
+    private long tick; // ticks processed, wheel thread only
+
+    /**
+     * Creates and starts the wheel.
+     *
+     * @param tickNanos length of a tick, the precision of the timers
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    TimingWheel(long tickNanos, int wheelSize, String threadName) {
+        if (tickNanos <= 0 || wheelSize < 1) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        this.tickNanos = tickNanos;
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.buckets = new Timer[size];
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @param onExpiry runs on the wheel thread when the timer's deadline has passed; it must be quick
+     * @return a timer that is not armed yet
+     */
+    Timer newTimer(Runnable onExpiry) {
+        return new Timer(onExpiry);
+    }
+
+    /**
+     * A reusable timer. It fires at most once per arming and can be re-armed afterwards.
+     */
+    final class Timer {
+        private static final int IDLE = 0;      // not in the wheel
+        private static final int QUEUED = 1;    // waiting to be filed by the wheel thread
+        private static final int FILED = 2;     // in a bucket
+        private static final int CANCELLED = 3; // never fires again
+
+        private final Runnable onExpiry;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private volatile long deadline;       // System.nanoTime, 0 when disarmed
+        private volatile long bucketDeadline; // end of the tick the timer is filed for
+        // Bucket links and turns left, wheel thread only
+        private Timer prev;
+        private Timer next;
+        private int bucket = -1;
+        private long rounds;
+
+        private Timer(Runnable onExpiry) {
+            this.onExpiry = onExpiry;
+        }
+
+        /**
+         * Arms the timer for the given System.nanoTime deadline, replacing any earlier deadline.
+         */
+        void expireAt(long deadlineNanos) {
+            deadline = deadlineNanos;
+            int s = state.get();
+            if ((s == IDLE || (s == FILED && deadlineNanos - bucketDeadline < 0)) && state.compareAndSet(s, QUEUED)) {
+                incoming.add(this);
+            }
+        }
+
+        /**
+         * Disarms the timer until the next expireAt; it stays in the wheel until its bucket comes up.
+         */
+        void disarm() {
+            deadline = 0;
+        }
+
+        /**
+         * Disarms the timer for good.
+         */
+        void cancel() {
+            deadline = 0;
+            state.set(CANCELLED);
+        }
+    }
+
+    private void run() {
+        long nextTick = startNanos + tickNanos;
+        while (true) {
+            long now;
+            while ((now = System.nanoTime()) - nextTick < 0) {
+                LockSupport.parkNanos(nextTick - now);
+            }
+            try {
+                fileIncoming();
+                expireBucket((int) (tick & mask), now);
+            } catch (RuntimeException e) {
+                logger.error("Timer task failed: {}", e.getMessage(), e);
+            }
+            tick++;
+            nextTick += tickNanos;
+        }
+    }
+
+    private void fileIncoming() {
+        Timer timer;
+        while ((timer = incoming.poll()) != null) {
+            unlink(timer);
+            if (timer.state.get() != Timer.QUEUED) {
+                continue; // cancelled meanwhile
+            }
+            long deadline = timer.deadline;
+            if (deadline == 0) {
+                timer.state.compareAndSet(Timer.QUEUED, Timer.IDLE);
+                continue;
+            }
+            file(timer, deadline, false);
+            timer.state.compareAndSet(Timer.QUEUED, Timer.FILED);
+        }
+    }
+
+    // Puts the timer in the bucket of its deadline, at the earliest the current one. Once the
+    // current bucket has been visited, its next visit is a full turn away.
+    private void file(Timer timer, long deadline, boolean currentVisited) {
+        long ticks = Math.max(tick, (deadline - startNanos + tickNanos - 1) / tickNanos - 1);
+        timer.rounds = (ticks - tick) / buckets.length;
+        if (currentVisited && ticks != tick && ((ticks - tick) & mask) == 0) {
+            timer.rounds--;
+        }
+        timer.bucketDeadline = startNanos + (ticks + 1) * tickNanos;
+        int index = (int) (ticks & mask);
+        timer.bucket = index;
+        timer.prev = null;
+        timer.next = buckets[index];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        buckets[index] = timer;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.bucket < 0) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = timer.next = null;
+        timer.bucket = -1;
+    }
+
+    private void expireBucket(int index, long now) {
+        Timer timer = buckets[index];
+        while (timer != null) {
+            Timer next = timer.next;
+            int s = timer.state.get();
+            if (s == Timer.CANCELLED) {
+                unlink(timer);
+            } else if (s == Timer.FILED) {
+                if (timer.rounds > 0) {
+                    timer.rounds--;
+                } else {
+                    unlink(timer);
+                    long deadline = timer.deadline;
+                    if (deadline == 0) {
+                        timer.state.compareAndSet(Timer.FILED, Timer.IDLE);
+                    } else if (deadline - now > tickNanos) {
+                        file(timer, deadline, true); // pushed later since it was filed
+                    } else if (timer.state.compareAndSet(Timer.FILED, Timer.IDLE)) {
+                        timer.onExpiry.run();
+                    }
+                }
+            }
+            // QUEUED timers are re-filed from the queue
+            timer = next;
+        }
+    }
+}
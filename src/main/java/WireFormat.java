@@ -0,0 +1,289 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Byte-level helpers for the wire format SockClient speaks: requests are Strings written with
+ * ObjectOutputStream.writeObject, responses are strings written with DataOutputStream.writeUTF.
+ * Both engines decode requests here instead of with ObjectInputStream.
+ */
+final class WireFormat {
+    static final byte TC_REFERENCE = 0x71;
+    static final byte TC_STRING = 0x74;
+    static final byte TC_RESET = 0x79;
+    static final byte TC_LONGSTRING = 0x7C;
+    static final int BASE_WIRE_HANDLE = 0x7E0000;
+    static final int MAX_UTF_LENGTH = 65535;
+    // Upper bound for a single request string, protects the server from absurd length fields.
+    static final long MAX_REQUEST_LENGTH = 64L * 1024 * 1024;
+    private static final int INITIAL_CHARS = 256;
+    // Decode buffers grown beyond this for one request are dropped afterwards.
+    private static final int MAX_KEPT_BUFFER = 1024 * 1024;
+
+    private WireFormat() {
+    }
+
+    /**
+     * Number of bytes writeUTF uses for the given string, excluding the two length bytes.
+     */
+    static int modifiedUtf8Length(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                len++;
+            } else if (c > 0x07FF) {
+                len += 3;
+            } else {
+                len += 2;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Encodes a string exactly as DataOutputStream.writeUTF would.
+     *
+     * @throws UTFDataFormatException if the encoded string is longer than 65535 bytes
+     */
+    static ByteBuffer encodeUtf(String s) throws UTFDataFormatException {
+        int utfLen = modifiedUtf8Length(s);
+        if (utfLen > MAX_UTF_LENGTH) {
+            throw new UTFDataFormatException("encoded string too long: " + utfLen + " bytes");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(utfLen + 2);
+        buf.putShort((short) utfLen);
+        putModifiedUtf8(buf, s);
+        buf.flip();
+        return buf;
+    }
+
+    static void putModifiedUtf8(ByteBuffer buf, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf.put((byte) c);
+            } else if (c > 0x07FF) {
+                buf.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buf.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Handles of the Strings decoded so far, which later records may refer to with TC_REFERENCE.
+     * A writer reuses a handle whenever it sends the same String instance again, however long ago
+     * it was first sent, so like ObjectInputStream this table keeps every String until the writer
+     * resets the stream. Each String is bounded by MAX_REQUEST_LENGTH.
+     */
+    static final class HandleTable {
+        private final ArrayList<String> strings = new ArrayList<>();
+
+        void add(String s) {
+            strings.add(s);
+        }
+
+        String get(int wireHandle) throws StreamCorruptedException {
+            int handle = wireHandle - BASE_WIRE_HANDLE;
+            if (handle < 0 || handle >= strings.size()) {
+                throw new StreamCorruptedException("invalid handle value: " + Integer.toHexString(wireHandle));
+            }
+            return strings.get(handle);
+        }
+
+        void clear() {
+            strings.clear();
+            strings.trimToSize();
+        }
+    }
+
+    /**
+     * Incremental decoder for a stream of serialized Strings.
+     * The stream header must already have been consumed. Only String records (and references
+     * to earlier Strings) are accepted, anything else is reported as a corrupted stream.
+     */
+    static final class StringDecoder {
+        private final HandleTable handles = new HandleTable();
+        private char[] chars = new char[INITIAL_CHARS];
+
+        /**
+         * Decodes the next String from the buffer.
+         *
+         * @param buf buffer in read mode; its position is advanced only if a full record was decoded
+         * @return the decoded String, or null if the buffer does not yet hold a complete record
+         * @throws StreamCorruptedException if the record is not a String or is malformed
+         */
+        String next(ByteBuffer buf) throws StreamCorruptedException {
+            while (buf.hasRemaining()) {
+                int start = buf.position();
+                byte tc = buf.get(start);
+                switch (tc) {
+                    case TC_RESET:
+                        buf.position(start + 1);
+                        handles.clear();
+                        continue;
+                    case TC_REFERENCE: {
+                        if (buf.remaining() < 5) return null;
+                        String s = handles.get(buf.getInt(start + 1));
+                        buf.position(start + 5);
+                        return s;
+                    }
+                    case TC_STRING: {
+                        if (buf.remaining() < 3) return null;
+                        int utfLen = buf.getShort(start + 1) & 0xFFFF;
+                        return readUtf(buf, start + 3, utfLen);
+                    }
+                    case TC_LONGSTRING: {
+                        if (buf.remaining() < 9) return null;
+                        return readUtf(buf, start + 9, longStringLength(buf.getLong(start + 1)));
+                    }
+                    default:
+                        throw new StreamCorruptedException(String.format("unexpected type code: %02X", tc));
+                }
+            }
+            return null;
+        }
+
+        private String readUtf(ByteBuffer buf, int offset, int utfLen) throws StreamCorruptedException {
+            if (buf.limit() - offset < utfLen) {
+                return null;
+            }
+            if (chars.length < utfLen) {
+                chars = new char[Math.max(utfLen, chars.length * 2)];
+            }
+            String s = new String(chars, 0, decodeModifiedUtf8(buf, offset, utfLen, chars));
+            buf.position(offset + utfLen);
+            handles.add(s);
+            if (chars.length > MAX_KEPT_BUFFER) {
+                chars = new char[INITIAL_CHARS]; // do not keep the buffer of one huge request
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Reads serialized Strings from a blocking stream, as ObjectInputStream.readObject would for
+     * a client that only writes Strings, without running Java deserialization: each record is
+     * checked by its type code before anything is read or allocated for it, so no other class is
+     * ever instantiated. Bytes and chars are decoded in buffers reused across requests.
+     * The stream header must already have been consumed.
+     */
+    static final class StringReader {
+        private final InputStream in;
+        private final HandleTable handles = new HandleTable();
+        private byte[] bytes = new byte[INITIAL_CHARS];
+        private ByteBuffer view = ByteBuffer.wrap(bytes);
+        private char[] chars = new char[INITIAL_CHARS];
+
+        StringReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return the next String
+         * @throws EOFException             if the stream ends, also between records
+         * @throws StreamCorruptedException if the record is not a String or is malformed
+         */
+        String read() throws IOException {
+            while (true) {
+                int tc = in.read();
+                switch (tc) {
+                    case -1:
+                        throw new EOFException();
+                    case TC_RESET:
+                        handles.clear();
+                        continue;
+                    case TC_REFERENCE:
+                        readFully(4);
+                        return handles.get(view.getInt(0));
+                    case TC_STRING:
+                        readFully(2);
+                        return readUtf(view.getShort(0) & 0xFFFF);
+                    case TC_LONGSTRING:
+                        readFully(8);
+                        return readUtf(longStringLength(view.getLong(0)));
+                    default:
+                        throw new StreamCorruptedException(String.format("unexpected type code: %02X", tc));
+                }
+            }
+        }
+
+        private String readUtf(int utfLen) throws IOException {
+            readFully(utfLen);
+            if (chars.length < utfLen) {
+                chars = new char[Math.max(utfLen, chars.length * 2)];
+            }
+            String s = new String(chars, 0, decodeModifiedUtf8(view, 0, utfLen, chars));
+            handles.add(s);
+            if (bytes.length > MAX_KEPT_BUFFER) {
+                bytes = new byte[INITIAL_CHARS]; // do not keep the buffers of one huge request
+                view = ByteBuffer.wrap(bytes);
+                chars = new char[INITIAL_CHARS];
+            }
+            return s;
+        }
+
+        // Reads len bytes to the start of the buffer. The buffer grows with the bytes that
+        // actually arrived, so a forged length alone cannot make the server allocate.
+        private void readFully(int len) throws IOException {
+            int n = 0;
+            while (n < len) {
+                if (n == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(len, 2L * bytes.length));
+                    view = ByteBuffer.wrap(bytes);
+                }
+                int r = in.read(bytes, n, Math.min(len, bytes.length) - n);
+                if (r < 0) {
+                    throw new EOFException("connection closed inside a request");
+                }
+                n += r;
+            }
+        }
+    }
+
+    private static int longStringLength(long utfLen) throws StreamCorruptedException {
+        if (utfLen < 0 || utfLen > MAX_REQUEST_LENGTH) {
+            throw new StreamCorruptedException("string length out of range: " + utfLen);
+        }
+        return (int) utfLen;
+    }
+
+    /**
+     * Decodes utfLen bytes of modified UTF-8 at offset into chars, which must hold at least utfLen chars.
+     *
+     * @return the number of chars decoded
+     */
+    static int decodeModifiedUtf8(ByteBuffer buf, int offset, int utfLen, char[] chars) throws StreamCorruptedException {
+        int count = 0;
+        int end = offset + utfLen;
+        int i = offset;
+        while (i < end) {
+            int b = buf.get(i) & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+                i++;
+            } else if ((b >> 5) == 0x06 && i + 1 < end) {
+                int b2 = buf.get(i + 1);
+                chars[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+                i += 2;
+            } else if ((b >> 4) == 0x0E && i + 2 < end) {
+                int b2 = buf.get(i + 1);
+                int b3 = buf.get(i + 2);
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+                i += 3;
+            } else {
+                throw new StreamCorruptedException("malformed input around byte " + (i - offset));
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,100 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run client connections.
+ * Virtual threads are looked up reflectively so the server still starts on JDKs older than 21;
+ * there the "virtual" mode falls back to a bounded pool of platform threads.
+ */
+final class WorkerPools {
+    static final String VIRTUAL = "virtual";
+    static final String PLATFORM = "platform";
+    static final int DEFAULT_POOL_SIZE = 200;
+
+    private WorkerPools() {
+    }
+
+    /**
+     * Creates an executor for the given mode.
+     *
+     * @param mode     "virtual" for one virtual thread per task, "platform" for a fixed pool
+     * @param poolSize number of platform threads, used by "platform" mode and as the fallback
+     * @param name     prefix for thread names
+     * @return the executor
+     */
+    static ExecutorService create(String mode, int poolSize, String name) {
+        return create(mode, poolSize, Integer.MAX_VALUE, name);
+    }
+
+    /**
+     * Creates an executor for the given mode whose platform pool queues at most queueCapacity
+     * tasks; further tasks are rejected with RejectedExecutionException.
+     *
+     * @param queueCapacity tasks that may wait for a platform thread, 0 for none
+     */
+    static ExecutorService create(String mode, int poolSize, int queueCapacity, String name) {
+        if (VIRTUAL.equalsIgnoreCase(mode)) {
+            ExecutorService virtual = newVirtualThreadPerTask();
+            if (virtual != null) {
+                return virtual;
+            }
+        } else if (!PLATFORM.equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("Unknown pool mode: " + mode + " (expected virtual or platform)");
+        }
+        BlockingQueue<Runnable> queue;
+        if (queueCapacity == Integer.MAX_VALUE) {
+            queue = new LinkedBlockingQueue<>();
+        } else if (queueCapacity == 0) {
+            queue = new SynchronousQueue<>(); // hands tasks to idle threads only
+        } else {
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+        return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, queue, namedThreads(name));
+    }
+
+    /**
+     * @return true if this JVM can create virtual threads. The factory method alone is not
+     * enough: on JDK 19 and 20 it exists but throws unless preview features are enabled.
+     */
+    static boolean virtualThreadsSupported() {
+        ExecutorService probe = newVirtualThreadPerTask();
+        if (probe == null) {
+            return false;
+        }
+        probe.shutdown();
+        return true;
+    }
+
+    /**
+     * Returns Executors.newVirtualThreadPerTaskExecutor() when available, null otherwise.
+     */
+    static ExecutorService newVirtualThreadPerTask() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thread factory producing non-daemon platform threads named prefix-1, prefix-2, ...
+     */
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(false);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the asynchronous access log.
+ */
+public class AccessLogTest {
+
+    @Test
+    public void writesOneLinePerRequest() throws Exception {
+        StringWriter out = new StringWriter();
+        AccessLog log = new AccessLog(out, 16, 1.0, 5);
+        Exchange exchange = new Exchange();
+        exchange.begin("{\"type\":\"echo\",\"data\":\"hi\"}", 27, 0);
+        exchange.type = "echo";
+        exchange.ok = true;
+        exchange.bytesOut = 40;
+        exchange.endNanos = System.nanoTime();
+        log.record(new InetSocketAddress("127.0.0.1", 5000), exchange);
+        exchange.begin("a", 1, 0);
+        log.record(null, exchange);
+        log.close();
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains(" type=echo status=ok in=27 out=40 latency_us="));
+        assertTrue(lines[0].endsWith(" req={\"typ..."));
+        assertTrue(lines[1].contains(" type=- status=error in=1 out=0 "));
+        assertTrue(lines[1].endsWith(" req=a"));
+        assertEquals(0, log.droppedCount());
+    }
+
+    @Test
+    public void sampledOutSuccessesAreSkippedButErrorsKept() throws Exception {
+        StringWriter out = new StringWriter();
+        AccessLog log = new AccessLog(out, 16, 0.0, 0);
+        Exchange exchange = new Exchange();
+        exchange.begin("{}", 2, 0);
+        exchange.ok = true;
+        log.record(null, exchange);
+        exchange.ok = false;
+        log.record(null, exchange);
+        log.close();
+
+        assertEquals(1, out.toString().split("\n").length);
+        assertTrue(out.toString().contains("status=error"));
+    }
+}
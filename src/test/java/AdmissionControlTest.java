@@ -0,0 +1,99 @@
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for admission control: the connection cap, shedding beyond the request limit, the limit
+ * following latency, and the pre-encoded busy response.
+ */
+public class AdmissionControlTest {
+    private long now;
+
+    @Test
+    public void connectionsBeyondTheCapAreRefused() {
+        AdmissionControl admission = new AdmissionControl(2, 0, 0, 1, 1, () -> now);
+        assertTrue(admission.tryOpenConnection());
+        assertTrue(admission.tryOpenConnection());
+        assertFalse(admission.tryOpenConnection());
+        admission.connectionClosed();
+        assertTrue(admission.tryOpenConnection());
+        assertEquals(1, admission.snapshot().getLong("refusedConnections"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeQueueIsRejected() {
+        new AdmissionControl(0, -1, 0, 1, 1, () -> now);
+    }
+
+    @Test
+    public void requestsBeyondTheLimitAreShed() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 2, 2, 2, () -> now);
+        assertTrue(admission.tryAcquire());
+        assertTrue(admission.tryAcquire());
+        assertFalse(admission.tryAcquire());
+        admission.release(1000);
+        assertTrue(admission.tryAcquire());
+        assertEquals(1, admission.snapshot().getLong("shed"));
+    }
+
+    @Test
+    public void limitGrowsWhileLatencyIsFlatAndShrinksWhenItRises() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 20, 5, 200, () -> now);
+        for (int window = 0; window < 20; window++) {
+            runWindow(admission, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        int grown = admission.limit();
+        assertTrue("limit " + grown, grown > 100);
+
+        for (int window = 0; window < 10; window++) {
+            runWindow(admission, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertTrue("limit " + admission.limit(), admission.limit() < grown * 3 / 4);
+    }
+
+    @Test
+    public void idleWindowsLeaveTheLimitAlone() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 100, 5, 200, () -> now);
+        for (int window = 0; window < 20; window++) {
+            for (int i = 0; i < 20; i++) { // one request at a time
+                assertTrue(admission.tryAcquire());
+                admission.release(TimeUnit.MILLISECONDS.toNanos(i % 2 == 0 ? 1 : 50));
+            }
+            now += AdmissionControl.WINDOW_NANOS;
+        }
+        assertEquals(100, admission.limit());
+    }
+
+    @Test
+    public void busyResponseIsReadableInBothFramings() throws Exception {
+        ByteArrayOutputStream utf = new ByteArrayOutputStream();
+        AdmissionControl.writeBusy(utf, false);
+        JSONObject busy = new JSONObject(new DataInputStream(new ByteArrayInputStream(utf.toByteArray())).readUTF());
+        assertFalse(busy.getBoolean("ok"));
+        assertEquals("busy", busy.getString("message"));
+
+        ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+        AdmissionControl.writeBusy(chunked, true);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunked.toByteArray()));
+        assertEquals("busy", ChunkedFraming.readJson(in).getString("message"));
+        assertEquals(-1, in.read());
+    }
+
+    // Fills every permit, then completes them all with the given latency and ends the window.
+    private void runWindow(AdmissionControl admission, long latencyNanos) {
+        int admitted = 0;
+        while (admission.tryAcquire()) {
+            admitted++;
+        }
+        now += AdmissionControl.WINDOW_NANOS;
+        for (int i = 0; i < admitted; i++) {
+            admission.release(latencyNanos);
+        }
+    }
+}
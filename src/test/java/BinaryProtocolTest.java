@@ -0,0 +1,166 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary protocol frame handling. These run the frames through
+ * BinaryProtocol.handleFrame directly, no server needs to be running.
+ */
+public class BinaryProtocolTest {
+
+    private final SockServer.Question[] holder = new SockServer.Question[1];
+
+    /**
+     * Builds a request frame (without the length prefix) from an opcode and a payload writer.
+     */
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private ByteBuffer call(byte opcode, Payload payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(opcode);
+        payload.write(out);
+        ByteBuffer res = BinaryProtocol.handleFrame(ByteBuffer.wrap(bytes.toByteArray()), holder, null);
+        assertEquals(res.remaining() - 4, res.getInt());
+        assertEquals(opcode, res.get());
+        return res;
+    }
+
+    @Test
+    public void echo() throws IOException {
+        ByteBuffer res = call(BinaryProtocol.ECHO, out -> BinaryProtocol.putString(out, "whooooo é"));
+        assertEquals(BinaryProtocol.STATUS_OK, res.get());
+        assertEquals("Here is your echo: whooooo é", BinaryProtocol.getString(res));
+    }
+
+    @Test
+    public void addAndAddMany() throws IOException {
+        ByteBuffer res = call(BinaryProtocol.ADD, out -> {
+            out.writeInt(1);
+            out.writeInt(2);
+        });
+        assertEquals(BinaryProtocol.STATUS_OK, res.get());
+        assertEquals(3, res.getInt());
+
+        res = call(BinaryProtocol.ADDMANY, out -> {
+            out.writeInt(3);
+            out.writeInt(10);
+            out.writeInt(20);
+            out.writeInt(150);
+        });
+        assertEquals(BinaryProtocol.STATUS_OK, res.get());
+        assertEquals(180, res.getLong());
+
+        res = call(BinaryProtocol.ADDMANY, out -> {
+            out.writeInt(2);
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeInt(Integer.MAX_VALUE);
+        });
+        assertEquals(BinaryProtocol.STATUS_OK, res.get());
+        assertEquals(2L * Integer.MAX_VALUE, res.getLong());
+    }
+
+    @Test
+    public void concatMany() throws IOException {
+        ByteBuffer res = call(BinaryProtocol.CONCAT_MANY, out -> {
+            out.writeInt(2);
+            BinaryProtocol.putString(out, "hello");
+            BinaryProtocol.putString(out, "world!");
+        });
+        assertEquals(BinaryProtocol.STATUS_OK, res.get());
+        assertEquals("helloworld!", BinaryProtocol.getString(res));
+    }
+
+    @Test
+    public void quizAnswerWithoutQuestion() throws IOException {
+        ByteBuffer res = call(BinaryProtocol.QUIZ_ANSWER, out -> BinaryProtocol.putString(out, "4"));
+        assertEquals(BinaryProtocol.STATUS_ERROR, res.get());
+        assertEquals("No active quiz question. Please request a new question first.", BinaryProtocol.getString(res));
+    }
+
+    @Test
+    public void quizAddRunsInTheQuizgameExecutor() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(BinaryProtocol.QUIZ_ADD);
+        BinaryProtocol.putString(out, "Binary question " + System.nanoTime() + "?");
+        BinaryProtocol.putString(out, "yes");
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        CompletableFuture<String> thread = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> done = new CompletableFuture<>();
+
+        assertNull(BinaryProtocol.handleFrame(frame, holder, null, new Exchange(), res -> {
+            thread.complete(Thread.currentThread().getName());
+            done.complete(res);
+        }));
+        Arrays.fill(frame.array(), (byte) 0); // the caller may reuse its buffer right away
+        ByteBuffer res = done.get(5, TimeUnit.SECONDS);
+        assertTrue(thread.get(), thread.get().startsWith("service-quizgame-"));
+        res.getInt();
+        assertEquals(BinaryProtocol.QUIZ_ADD, res.get());
+        assertEquals(BinaryProtocol.STATUS_OK, res.get());
+    }
+
+    @Test
+    public void malformedFrame() throws IOException {
+        // array count larger than the frame
+        ByteBuffer res = call(BinaryProtocol.ADDMANY, out -> out.writeInt(1000));
+        assertEquals(BinaryProtocol.STATUS_ERROR, res.get());
+        assertEquals("Malformed request frame.", BinaryProtocol.getString(res));
+    }
+
+    @Test
+    public void servesFramesOfAnySizeAndStopsInsideAForgedOne() throws IOException {
+        char[] filler = new char[5000];
+        Arrays.fill(filler, 'x');
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String data : new String[]{new String(filler), "hi"}) {
+            out.writeInt(5 + data.length());
+            out.writeByte(BinaryProtocol.ECHO);
+            BinaryProtocol.putString(out, data);
+        }
+        out.writeInt(BinaryProtocol.MAX_FRAME_LENGTH); // only a few bytes of it follow
+        out.writeByte(BinaryProtocol.ECHO);
+        out.writeInt(10);
+
+        ByteArrayOutputStream responses = new ByteArrayOutputStream();
+        ConnectionTimeouts.Deadline deadline = new ConnectionTimeouts(0, 0, 0).newDeadline(null, () -> {
+        });
+        try {
+            BinaryProtocol.serve(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), responses,
+                    holder, null, deadline);
+            fail("the stream ends inside a frame");
+        } catch (EOFException expected) {
+        }
+        ByteBuffer res = ByteBuffer.wrap(responses.toByteArray());
+        for (String data : new String[]{new String(filler), "hi"}) {
+            res.getInt();
+            assertEquals(BinaryProtocol.ECHO, res.get());
+            assertEquals(BinaryProtocol.STATUS_OK, res.get());
+            assertEquals("Here is your echo: " + data, BinaryProtocol.getString(res));
+        }
+        assertFalse(res.hasRemaining());
+    }
+
+    @Test
+    public void unknownOpcode() throws IOException {
+        ByteBuffer res = call((byte) 99, out -> {
+        });
+        assertEquals(BinaryProtocol.STATUS_ERROR, res.get());
+        assertEquals("Opcode 99 is not supported.", BinaryProtocol.getString(res));
+    }
+}
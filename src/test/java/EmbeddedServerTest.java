@@ -0,0 +1,360 @@
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the embeddable server lifecycle: ephemeral ports, several instances at once and
+ * graceful stop, on both engines.
+ */
+public class EmbeddedServerTest {
+    private static final String[] MODES = {"virtual", "nio"};
+
+    @Test
+    public void instancesOnEphemeralPorts() throws Exception {
+        try (SockServer first = new SockServer(0, "virtual", 4);
+             SockServer second = new SockServer(0, "nio", 1)) {
+            first.start();
+            second.start();
+            assertTrue(first.getPort() > 0);
+            assertTrue(second.getPort() > 0);
+            assertNotEquals(first.getPort(), second.getPort());
+            assertEquals("Here is your echo: hi", echo(first.getPort()).getString("echo"));
+            assertEquals("Here is your echo: hi", echo(second.getPort()).getString("echo"));
+        }
+    }
+
+    @Test
+    public void stopFinishesInFlightRequestAndClosesIdleConnections() throws Exception {
+        for (String mode : MODES) {
+            SockServer server = new SockServer(0, mode, 2);
+            server.start();
+            try (Socket busy = new Socket("localhost", server.getPort());
+                 Socket idle = new Socket("localhost", server.getPort())) {
+                byte[] request = serialized("{\"type\":\"add\",\"num1\":\"2\",\"num2\":\"3\"}");
+                OutputStream busyOut = busy.getOutputStream();
+                busyOut.write(request, 0, request.length - 5); // request partly sent
+                busyOut.flush();
+                idle.getOutputStream().write(serialized("{\"type\":\"echo\",\"data\":\"x\"}"));
+                DataInputStream idleIn = new DataInputStream(idle.getInputStream());
+                assertTrue(new JSONObject(idleIn.readUTF()).getBoolean("ok"));
+
+                AtomicBoolean drained = new AtomicBoolean();
+                Thread stopper = new Thread(() -> {
+                    try {
+                        drained.set(server.stop(5, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                stopper.start();
+
+                idle.setSoTimeout(2000);
+                assertEquals(mode, -1, idleIn.read()); // idle connection closed right away
+                Thread.sleep(100);
+                assertTrue(mode, stopper.isAlive()); // still waiting for the busy connection
+
+                busyOut.write(Arrays.copyOfRange(request, request.length - 5, request.length));
+                busyOut.flush();
+                busy.setSoTimeout(2000);
+                DataInputStream busyIn = new DataInputStream(busy.getInputStream());
+                assertEquals(mode, 5, new JSONObject(busyIn.readUTF()).getInt("result"));
+                try {
+                    assertEquals(mode, -1, busyIn.read()); // closed after its response
+                } catch (EOFException expected) {
+                }
+                stopper.join(5000);
+                assertFalse(mode, stopper.isAlive());
+                assertTrue(mode, drained.get());
+            }
+        }
+    }
+
+    @Test
+    public void largeResponsesNeedChunkedFraming() throws Exception {
+        char[] filler = new char[100_000];
+        Arrays.fill(filler, 'é'); // two bytes each, so the echo is about 200 KB
+        String data = new String(filler);
+        for (String mode : MODES) {
+            SockServer server = new SockServer(0, mode, 2);
+            server.start();
+            try (SockServer ignored = server;
+                 Socket sock = new Socket("localhost", server.getPort())) {
+                sock.setSoTimeout(5000);
+                ObjectOutputStream os = new ObjectOutputStream(sock.getOutputStream());
+                DataInputStream in = new DataInputStream(sock.getInputStream());
+                JSONObject echo = new JSONObject().put("type", "echo").put("data", data).put("id", 7);
+
+                os.writeObject(echo.toString());
+                os.flush();
+                JSONObject refused = new JSONObject(in.readUTF());
+                assertFalse(mode, refused.getBoolean("ok"));
+                assertEquals(mode, 7, refused.getInt("id"));
+                assertTrue(mode, refused.getString("message").contains("negotiate"));
+
+                os.writeObject("{\"type\":\"negotiate\",\"framing\":\"chunked\"}");
+                os.flush();
+                assertTrue(mode, new JSONObject(in.readUTF()).getBoolean("ok"));
+
+                os.writeObject(echo.toString());
+                os.writeObject("{\"type\":\"add\",\"num1\":\"2\",\"num2\":\"3\"}");
+                os.flush();
+                assertEquals(mode, "Here is your echo: " + data, ChunkedFraming.readJson(in).getString("echo"));
+                assertEquals(mode, 5, ChunkedFraming.readJson(in).getInt("result"));
+            }
+        }
+    }
+
+    @Test
+    public void largeMessagesAreCompressedBothWays() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 200_000) {
+            text.append("the quick brown fox jumps over the lazy dog ").append(text.length()).append(' ');
+        }
+        String data = text.toString();
+        for (String mode : MODES) {
+            SockServer server = new SockServer(0, mode, 2);
+            server.start();
+            Compression compression = new Compression(Compression.THRESHOLD);
+            try (SockServer ignored = server;
+                 Socket sock = new Socket("localhost", server.getPort())) {
+                sock.setSoTimeout(5000);
+                ObjectOutputStream os = new ObjectOutputStream(sock.getOutputStream());
+                DataInputStream in = new DataInputStream(sock.getInputStream());
+
+                os.writeObject("{\"type\":\"negotiate\",\"framing\":\"utf\",\"compression\":\"deflate\"}");
+                os.writeObject("{\"type\":\"negotiate\",\"framing\":\"chunked\",\"compression\":\"deflate\"}");
+                os.flush();
+                assertFalse(mode, new JSONObject(in.readUTF()).getBoolean("ok")); // needs chunked framing
+                assertEquals(mode, Compression.THRESHOLD, new JSONObject(in.readUTF()).getInt("threshold"));
+
+                String echo = new JSONObject().put("type", "echo").put("data", data).toString();
+                os.writeObject(compression.deflate(echo));
+                os.writeObject(compression.deflate("{\"type\":\"add\",\"num1\":\"2\",\"num2\":\"3\"}"));
+                os.writeObject("eJxub3QgemxpYg=="); // Base64, but not a zlib stream
+                os.writeObject("not base64 or zlib");
+                os.writeObject("[\"an\", \"array\"]");
+                os.flush();
+                assertEquals(mode, "Here is your echo: " + data, compression.readJson(in).getString("echo"));
+                assertEquals(mode, 5, compression.readJson(in).getInt("result")); // below the threshold, plain
+                assertEquals(mode, "Request could not be decompressed.", compression.readJson(in).getString("message"));
+                // neither is Base64, so they get the errors of the JSON protocol
+                assertEquals(mode, "req not JSON", compression.readJson(in).getString("message"));
+                assertEquals(mode, "Invalid JSON format.", compression.readJson(in).getString("message"));
+                // the request went out compressed and the response came back compressed
+                assertTrue(mode, compression.wireBytes() * 5 < compression.plainBytes());
+                assertTrue(mode, compression.plainBytes() > 2 * data.length());
+            } finally {
+                compression.end();
+            }
+        }
+    }
+
+    @Test
+    public void silentAndSlowClientsAreClosedByTheirDeadlines() throws Exception {
+        System.setProperty("sockserver.timeout.header", "300");
+        System.setProperty("sockserver.timeout.idle", "300");
+        System.setProperty("sockserver.timeout.read", "300");
+        try {
+            for (String mode : MODES) {
+                JSONObject before = SockServer.stats.snapshot().getJSONObject("connections").getJSONObject("timedOut");
+                SockServer server = new SockServer(0, mode, 2);
+                server.start();
+                try (SockServer ignored = server;
+                     Socket silent = new Socket("localhost", server.getPort());
+                     Socket idle = new Socket("localhost", server.getPort());
+                     Socket slow = new Socket("localhost", server.getPort())) {
+                    byte[] request = serialized("{\"type\":\"echo\",\"data\":\"x\"}");
+                    idle.getOutputStream().write(request);
+                    slow.getOutputStream().write(request, 0, request.length - 3); // header and part of a request
+                    DataInputStream idleIn = new DataInputStream(idle.getInputStream());
+                    assertTrue(mode, new JSONObject(idleIn.readUTF()).getBoolean("ok"));
+                    for (Socket sock : new Socket[]{silent, idle, slow}) {
+                        sock.setSoTimeout(3000);
+                        assertEquals(mode, -1, sock.getInputStream().read());
+                    }
+                }
+                JSONObject after = SockServer.stats.snapshot().getJSONObject("connections").getJSONObject("timedOut");
+                for (String kind : new String[]{"header", "idle", "read"}) {
+                    assertEquals(mode + " " + kind, before.getLong(kind) + 1, after.getLong(kind));
+                }
+            }
+        } finally {
+            System.clearProperty("sockserver.timeout.header");
+            System.clearProperty("sockserver.timeout.idle");
+            System.clearProperty("sockserver.timeout.read");
+        }
+    }
+
+    @Test
+    public void isolatedServiceDoesNotHoldTheEventLoop() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SockServer.services.register("slowtest", (req, holder, peer) -> {
+            release.await();
+            return new JSONObject().put("type", "slowtest").put("ok", true);
+        }, 1, 1);
+        SockServer server = new SockServer(0, "nio", 1); // one event loop for both connections
+        server.start();
+        try (SockServer ignored = server;
+             Socket heavy = new Socket("localhost", server.getPort())) {
+            heavy.setSoTimeout(5000);
+            ObjectOutputStream os = new ObjectOutputStream(heavy.getOutputStream());
+            os.writeObject("{\"type\":\"slowtest\",\"id\":1}");
+            os.writeObject("{\"type\":\"echo\",\"data\":\"after\",\"id\":2}");
+            os.flush();
+            Thread.sleep(100);
+
+            // the loop serves other connections while the slow request computes
+            assertEquals("Here is your echo: hi", echo(server.getPort()).getString("echo"));
+
+            release.countDown();
+            DataInputStream in = new DataInputStream(heavy.getInputStream());
+            JSONObject first = new JSONObject(in.readUTF());
+            assertEquals(1, first.getInt("id"));
+            assertTrue(first.getBoolean("ok"));
+            assertEquals(2, new JSONObject(in.readUTF()).getInt("id")); // order kept
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void answersBeforeACorruptedRequestAreSent() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream os = new ObjectOutputStream(bytes)) {
+            os.writeObject("{\"type\":\"echo\",\"data\":\"one\"}");
+            os.writeObject("{\"type\":\"echo\",\"data\":\"two\"}");
+        }
+        bytes.write(0x00); // not a String record
+        for (String mode : MODES) {
+            SockServer server = new SockServer(0, mode, 2);
+            server.start();
+            try (SockServer ignored = server;
+                 Socket sock = new Socket("localhost", server.getPort())) {
+                sock.setSoTimeout(5000);
+                sock.getOutputStream().write(bytes.toByteArray()); // one write, so the answers may be held back
+                DataInputStream in = new DataInputStream(sock.getInputStream());
+                assertEquals(mode, "Here is your echo: one", new JSONObject(in.readUTF()).getString("echo"));
+                assertEquals(mode, "Here is your echo: two", new JSONObject(in.readUTF()).getString("echo"));
+                assertEquals(mode, -1, in.read()); // then the connection is closed
+            }
+        }
+    }
+
+    @Test
+    public void clientThatDoesNotReadItsResponsesIsNotReadFrom() throws Exception {
+        char[] data = new char[10_000];
+        Arrays.fill(data, 'x');
+        byte[] first = serialized("{\"type\":\"echo\",\"data\":\"" + new String(data) + "\"}");
+        byte[] request = Arrays.copyOfRange(first, 4, first.length + 1); // without the stream header
+        request[request.length - 1] = WireFormat.TC_RESET; // so the server keeps no request string
+        int count = 8000; // 80 MB of requests and as much of responses
+        for (String mode : MODES) {
+            SockServer server = new SockServer(0, mode, 2);
+            server.start();
+            try (SockServer ignored = server;
+                 Socket sock = new Socket("localhost", server.getPort())) {
+                sock.setSoTimeout(10_000);
+                OutputStream out = sock.getOutputStream();
+                out.write(first, 0, 4);
+                AtomicInteger sent = new AtomicInteger();
+                Thread writer = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            out.write(request);
+                            sent.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        // the test fails on the missing responses
+                    }
+                });
+                writer.start();
+                int before;
+                do { // until the server stops reading and the socket buffers are full
+                    before = sent.get();
+                    Thread.sleep(500);
+                } while (sent.get() != before && sent.get() < count);
+                assertTrue(mode + " read " + sent.get() + " requests", sent.get() < count);
+
+                DataInputStream in = new DataInputStream(sock.getInputStream());
+                for (int i = 0; i < count; i++) { // reading the responses lets the server read on
+                    assertEquals(mode, 19 + data.length, new JSONObject(in.readUTF()).getString("echo").length());
+                }
+                writer.join();
+            }
+        }
+    }
+
+    @Test
+    public void severalAcceptorsShareThePort() throws Exception {
+        System.setProperty("sockserver.acceptors", "3");
+        System.setProperty("sockserver.backlog", "200");
+        try {
+            for (String mode : MODES) {
+                SockServer server = new SockServer(0, mode, 3);
+                server.start();
+                try (SockServer ignored = server) {
+                    // without SO_REUSEPORT the server falls back to a single acceptor
+                    int expected = reusePortSupported(mode) ? 3 : 1;
+                    String name = (mode.equals("nio") ? "nio-acceptor-" : "acceptor-") + server.getPort();
+                    long acceptors = Thread.getAllStackTraces().keySet().stream()
+                            .filter(t -> expected == 1 ? t.getName().equals(name) : t.getName().startsWith(name + "-"))
+                            .count();
+                    assertEquals(mode, expected, acceptors);
+                    for (int i = 0; i < 12; i++) { // within the rate limiter's burst
+                        assertEquals(mode, "Here is your echo: hi", echo(server.getPort()).getString("echo"));
+                    }
+                }
+            }
+        } finally {
+            System.clearProperty("sockserver.acceptors");
+            System.clearProperty("sockserver.backlog");
+        }
+    }
+
+    private static boolean reusePortSupported(String mode) throws Exception {
+        if (mode.equals("nio")) {
+            try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+                return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
+        }
+        try (ServerSocket socket = new ServerSocket()) {
+            return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private static JSONObject echo(int port) throws Exception {
+        try (Socket sock = new Socket("localhost", port)) {
+            sock.setSoTimeout(5000);
+            sock.getOutputStream().write(serialized("{\"type\":\"echo\",\"data\":\"hi\"}"));
+            return new JSONObject(new DataInputStream(sock.getInputStream()).readUTF());
+        }
+    }
+
+    /**
+     * @return the stream header and one string, as SockClient sends them
+     */
+    private static byte[] serialized(String request) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream os = new ObjectOutputStream(bytes)) {
+            os.writeObject(request);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the flush policy: responses are held back while more requests are buffered and go
+ * out together once the input drains, the buffer fills or the latency budget runs out.
+ */
+public class FlushPolicyTest {
+    private final List<Integer> writes = new ArrayList<>(); // sizes of the writes reaching the socket
+    private final ByteArrayOutputStream socket = new ByteArrayOutputStream() {
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes.add(len);
+            super.write(b, off, len);
+        }
+    };
+    private boolean moreInput;
+
+    @Test
+    public void responsesAreHeldWhileMoreRequestsAreBuffered() throws Exception {
+        FlushPolicy.Output output = new FlushPolicy(true, 1_000_000, 8192).output(socket, () -> moreInput);
+        DataOutputStream os = new DataOutputStream(output);
+        moreInput = true;
+        for (int i = 0; i < 3; i++) {
+            os.writeUTF("response " + i);
+            os.flush();
+        }
+        assertTrue(writes.isEmpty());
+        assertTrue(output.holding());
+
+        moreInput = false; // the last buffered request
+        os.writeUTF("response 3");
+        os.flush();
+        assertEquals(1, writes.size());
+        assertEquals(4 * 12, socket.size());
+        assertFalse(output.holding());
+
+        moreInput = true; // held responses go out before the connection waits for the client
+        os.writeUTF("response 4");
+        os.flush();
+        output.flushHeld();
+        assertEquals(2, writes.size());
+    }
+
+    @Test
+    public void fullBufferAndBudgetEndTheHold() throws Exception {
+        DataOutputStream os = new DataOutputStream(new FlushPolicy(true, 1_000_000, 32).output(socket, () -> moreInput));
+        moreInput = true;
+        for (int i = 0; i < 3; i++) {
+            os.writeUTF("response " + i); // 12 bytes each, the third does not fit
+            os.flush();
+        }
+        assertEquals(1, writes.size());
+        assertEquals(24, (int) writes.get(0));
+
+        writes.clear();
+        os = new DataOutputStream(new FlushPolicy(true, 1_000, 8192).output(socket, () -> moreInput));
+        os.writeUTF("response 3");
+        os.flush();
+        Thread.sleep(5); // past the budget of 1 ms
+        os.writeUTF("response 4");
+        os.flush();
+        assertEquals(1, writes.size());
+        assertEquals(24, (int) writes.get(0));
+    }
+
+    @Test
+    public void immediatePolicyWritesEveryResponse() throws Exception {
+        DataOutputStream os = new DataOutputStream(FlushPolicy.IMMEDIATE.output(socket, () -> moreInput));
+        moreInput = true;
+        for (int i = 0; i < 3; i++) {
+            os.writeUTF("response " + i);
+            os.flush();
+        }
+        assertEquals(3, writes.size());
+    }
+}
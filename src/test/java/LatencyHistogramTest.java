@@ -0,0 +1,64 @@
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the log-linear latency histogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++) {
+            histogram.record(v * 1000);
+        }
+        assertEquals(100000, histogram.count());
+        assertEquals(100000000L, histogram.max());
+        long[] values = histogram.percentiles(50, 99, 99.9, 100);
+        assertEquals(50000000, values[0], 50000000 * 0.04);
+        assertEquals(99000000, values[1], 99000000 * 0.04);
+        assertEquals(99900000, values[2], 99900000 * 0.04);
+        assertEquals(100000000L, values[3]);
+        assertEquals(50000500, histogram.mean(), 1);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int v = 0; v < 64; v++) {
+            histogram.record(v);
+        }
+        assertEquals(31, histogram.valueAtPercentile(50));
+        assertEquals(63, histogram.valueAtPercentile(100));
+    }
+
+    @Test
+    public void emptyAndMerged() {
+        LatencyHistogram a = new LatencyHistogram();
+        assertEquals(0, a.valueAtPercentile(99));
+        LatencyHistogram b = new LatencyHistogram();
+        b.record(Long.MAX_VALUE);
+        b.record(-5);
+        a.record(7);
+        a.add(b);
+        assertEquals(3, a.count());
+        assertEquals(Long.MAX_VALUE, a.max());
+        assertEquals(7, a.valueAtPercentile(50));
+    }
+
+    @Test
+    public void coordinatedOmissionCorrection() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(100000); // one stall of 100 intervals
+        LatencyHistogram corrected = histogram.correctedForCoordinatedOmission(1000);
+        assertEquals(100, histogram.count());
+        assertEquals(199, corrected.count());
+        assertEquals(1000, histogram.valueAtPercentile(99), 1000 * 0.04);
+        assertEquals(50000, corrected.valueAtPercentile(75), 50000 * 0.04);
+        assertEquals(100000, corrected.max());
+    }
+}
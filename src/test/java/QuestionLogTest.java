@@ -0,0 +1,127 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the memory-mapped quiz question log: recovery, torn records and group commit.
+ */
+public class QuestionLogTest {
+    private Path dir;
+    private Path file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("questionlog");
+        file = dir.resolve("questions.log");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void questionsSurviveReopening() throws IOException {
+        try (QuestionLog log = new QuestionLog(file, new QuestionStore())) {
+            assertTrue(log.addIfAbsent(new SockServer.Question("What is 2+2?", "4")));
+            assertTrue(log.addIfAbsent(new SockServer.Question("Größte Stadt?", "Berlin")));
+            assertFalse(log.addIfAbsent(new SockServer.Question("what is 2+2? ", "four")));
+        }
+
+        QuestionStore store = new QuestionStore();
+        try (QuestionLog log = new QuestionLog(file, store)) {
+            assertEquals(2, store.size());
+            assertEquals("4", store.get(store.indexOf("What is 2+2?")).answer);
+            assertEquals("Berlin", store.get(store.indexOf("Größte Stadt?")).answer);
+            log.addIfAbsent(new SockServer.Question("third", "3"));
+        }
+        // the duplicate was never written: the log holds exactly the three questions
+        assertEquals(16 + (8 + 4 + 12 + 1) + (8 + 4 + 15 + 6) + (8 + 4 + 5 + 1), firstZero(file));
+    }
+
+    @Test
+    public void tornRecordEndsTheLog() throws IOException {
+        try (QuestionLog log = new QuestionLog(file, new QuestionStore())) {
+            log.addIfAbsent(new SockServer.Question("first", "1"));
+            log.addIfAbsent(new SockServer.Question("second", "2"));
+        }
+        // flip a byte in the last record, as if the crash happened while it was written
+        long lastAnswer = 16 + (8 + 4 + 5 + 1) + 8 + 4 + 6;
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(lastAnswer);
+            raf.write('x');
+        }
+
+        QuestionStore store = new QuestionStore();
+        try (QuestionLog log = new QuestionLog(file, store)) {
+            assertEquals(1, store.size());
+            assertEquals("first", store.get(0).questionText);
+            log.addIfAbsent(new SockServer.Question("third", "3"));
+        }
+        store = new QuestionStore();
+        try (QuestionLog ignored = new QuestionLog(file, store)) {
+            assertEquals(2, store.size());
+            assertEquals("third", store.get(1).questionText);
+        }
+    }
+
+    @Test
+    public void concurrentAddsAreAllDurable() throws Exception {
+        try (QuestionLog log = new QuestionLog(file, new QuestionStore())) {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            log.addIfAbsent(new SockServer.Question(thread + "-" + i, "a"));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        QuestionStore store = new QuestionStore();
+        try (QuestionLog ignored = new QuestionLog(file, store)) {
+            assertEquals(1600, store.size());
+            assertTrue(store.indexOf("7-199") >= 0);
+        }
+    }
+
+    // Offset of the zero length that ends the records.
+    private static long firstZero(Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            long position = 16;
+            raf.seek(position);
+            int length;
+            while ((length = raf.readInt()) != 0) {
+                position += 8 + length;
+                raf.seek(position);
+            }
+            return position;
+        }
+    }
+}
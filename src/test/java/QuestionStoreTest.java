@@ -0,0 +1,116 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the concurrent quiz question store.
+ */
+public class QuestionStoreTest {
+
+    @Test
+    public void emptyStore() {
+        QuestionStore store = new QuestionStore();
+        assertEquals(0, store.size());
+        assertNull(store.random());
+    }
+
+    @Test
+    public void appendsAcrossSegments() {
+        QuestionStore store = new QuestionStore();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(store.putIfAbsent(new SockServer.Question("q" + i, "a" + i)));
+        }
+        assertEquals(10000, store.size());
+        assertEquals("q0", store.get(0).questionText);
+        assertEquals("a9999", store.get(9999).answer);
+        assertNotNull(store.random());
+    }
+
+    @Test
+    public void putKeepsAnswerOfSameQuestion() {
+        QuestionStore store = new QuestionStore();
+        assertTrue(store.putIfAbsent(new SockServer.Question("q", "old")));
+        assertTrue(store.putIfAbsent(new SockServer.Question("other", "a")));
+        assertFalse(store.putIfAbsent(new SockServer.Question("q", "new")));
+        assertEquals(2, store.size());
+        assertEquals("old", store.get(0).answer);
+        assertEquals(1, store.indexOf("other"));
+        assertEquals(-1, store.indexOf("missing"));
+    }
+
+    @Test
+    public void questionTextsAreNormalized() {
+        assertTrue(QuestionStore.sameKey("What is  2+2?", " what IS 2+2?\t"));
+        assertEquals(QuestionStore.keyHash("What is  2+2?"), QuestionStore.keyHash(" what IS 2+2?\t"));
+        assertEquals("what is 2+2?".hashCode(), QuestionStore.keyHash("What is  2+2?"));
+        assertFalse(QuestionStore.sameKey("What is 2+2?", "What is2+2?"));
+        assertFalse(QuestionStore.sameKey("What is 2+2?", "What is 2+2? really"));
+
+        QuestionStore store = new QuestionStore();
+        List<SockServer.Question> batch = Arrays.asList(new SockServer.Question("Capital of France?", "Paris"),
+                new SockServer.Question("capital of  france? ", "Lyon"),
+                new SockServer.Question("Capital of Spain?", "Madrid"));
+        assertArrayEquals(new boolean[]{true, false, true}, store.putAllIfAbsent(batch));
+        assertArrayEquals(new boolean[]{false}, store.putAllIfAbsent(batch.subList(2, 3)));
+        assertEquals(2, store.size());
+        assertEquals("Paris", store.get(store.indexOf("CAPITAL OF FRANCE?")).answer);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getBeyondSize() {
+        QuestionStore store = new QuestionStore();
+        store.putIfAbsent(new SockServer.Question("q", "a"));
+        store.get(1);
+    }
+
+    @Test
+    public void concurrentWritersAndReaders() throws Exception {
+        QuestionStore store = new QuestionStore();
+        store.putIfAbsent(new SockServer.Question("seed", "seed"));
+        int writers = 4;
+        int perWriter = 5000;
+        AtomicBoolean sawNull = new AtomicBoolean();
+        AtomicBoolean done = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(writers);
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (!done.get()) {
+                    if (store.random() == null) {
+                        sawNull.set(true);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    store.putIfAbsent(new SockServer.Question(writer + "-" + i, "a"));
+                }
+                finished.countDown();
+            }).start();
+        }
+        finished.await();
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertFalse(sawNull.get());
+        assertEquals(1 + writers * perWriter, store.size());
+        Set<String> texts = new HashSet<>();
+        for (int i = 0; i < store.size(); i++) {
+            texts.add(store.get(i).questionText);
+        }
+        assertEquals(store.size(), texts.size());
+    }
+}
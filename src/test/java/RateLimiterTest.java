@@ -0,0 +1,87 @@
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the connection rate limiter, using a manual clock.
+ */
+public class RateLimiterTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+
+    private static InetAddress ip(String address) throws Exception {
+        return InetAddress.getByName(address);
+    }
+
+    @Test
+    public void burstThenRefill() throws Exception {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(2, 3), Collections.emptyList(), 100, now::get);
+        InetAddress client = ip("10.1.2.3");
+        assertTrue(limiter.tryAcquire(client));
+        assertTrue(limiter.tryAcquire(client));
+        assertTrue(limiter.tryAcquire(client));
+        assertFalse(limiter.tryAcquire(client));
+        assertEquals(1, limiter.rejectedCount());
+
+        // other clients have their own bucket
+        assertTrue(limiter.tryAcquire(ip("10.1.2.4")));
+
+        // 2 per second: one token back after half a second
+        now.addAndGet(500_000_000L);
+        assertTrue(limiter.tryAcquire(client));
+        assertFalse(limiter.tryAcquire(client));
+    }
+
+    @Test
+    public void cidrRules() throws Exception {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(1, 1),
+                RateLimiter.parseRules("10.0.0.0/8=1,100; 10.9.0.0/16=1,2,shared"), 100, now::get);
+
+        // the NAT block gets a large per-IP burst
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire(ip("10.1.0.1")));
+        }
+        assertFalse(limiter.tryAcquire(ip("10.1.0.1")));
+
+        // the more specific shared rule wins and is shared across the block
+        assertTrue(limiter.tryAcquire(ip("10.9.0.1")));
+        assertTrue(limiter.tryAcquire(ip("10.9.0.2")));
+        assertFalse(limiter.tryAcquire(ip("10.9.0.3")));
+
+        // everyone else gets the default
+        assertTrue(limiter.tryAcquire(ip("192.168.0.1")));
+        assertFalse(limiter.tryAcquire(ip("192.168.0.1")));
+    }
+
+    @Test
+    public void idleKeysAreEvicted() throws Exception {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(10, 1), Collections.emptyList(), 4, now::get);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire(ip("10.0.0." + i)));
+        }
+        assertEquals(4, limiter.trackedKeys());
+
+        // table full and nobody idle yet: new clients share the overflow bucket
+        assertTrue(limiter.tryAcquire(ip("10.0.1.1")));
+        assertFalse(limiter.tryAcquire(ip("10.0.1.2")));
+        assertEquals(5, limiter.trackedKeys());
+
+        // after the buckets refill the old keys are dropped
+        now.addAndGet(1_000_000_000L);
+        assertTrue(limiter.tryAcquire(ip("10.0.1.3")));
+        assertEquals(1, limiter.trackedKeys());
+    }
+
+    @Test
+    public void zeroRateDisablesLimiting() throws Exception {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(0, 1), Collections.emptyList(), 1, now::get);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire(ip("10.0.0.1")));
+        }
+        assertEquals(0, limiter.trackedKeys());
+    }
+}
@@ -0,0 +1,81 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the single-pass request parser.
+ */
+public class RequestViewTest {
+
+    @Test
+    public void decodesFieldsLikeJSONObject() {
+        String text = "{\"type\" : \"addmany\", \"nums\": [1, \"2\", 3], \"flag\": true, \"n\": -12, \"d\": 1.5, \"s\": \"a\\\"b\\u0041\"}";
+        RequestView req = RequestView.parse(text);
+        JSONObject expected = new JSONObject(text);
+
+        assertTrue(req.isObject());
+        assertEquals(6, req.length());
+        assertEquals("addmany", req.getString("type"));
+        assertEquals(3, req.getJSONArray("nums").length());
+        assertEquals(2, req.getJSONArray("nums").getInt(1));
+        assertTrue(req.getBoolean("flag"));
+        assertEquals(expected.get("n"), req.get("n"));
+        assertEquals(expected.get("d"), req.get("d"));
+        assertEquals("a\"bA", req.getString("s"));
+        assertFalse(req.has("missing"));
+        assertEquals(text, req.toString());
+    }
+
+    @Test
+    public void readsIntegerArraysWithoutBoxing() {
+        RequestView req = RequestView.parse("{\"nums\": [ 1, \"-2\" ,9223372036854775807, -9223372036854775808], \"empty\": [],"
+                + " \"fraction\": [1, 2.5], \"word\": [\"two\"], \"big\": [9223372036854775808], \"n\": 3}");
+        assertArrayEquals(new long[]{1, -2, Long.MAX_VALUE, Long.MIN_VALUE}, req.longArray("nums"));
+        assertArrayEquals(new long[0], req.longArray("empty"));
+        assertNull(req.longArray("fraction"));
+        assertNull(req.longArray("word"));
+        assertNull(req.longArray("big"));
+        assertNull(req.longArray("n"));
+        assertNull(req.longArray("missing"));
+    }
+
+    @Test
+    public void arrayIsValidButNotAnObject() {
+        assertFalse(RequestView.parse("[1, 2, {\"a\": null}]").isObject());
+    }
+
+    @Test
+    public void lenientTextFallsBackToOrgJson() {
+        RequestView req = RequestView.parse("{type: 'echo', 'data': 'hi'}");
+        assertEquals("echo", req.getString("type"));
+        assertEquals("hi", req.getString("data"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void notJson() {
+        RequestView.parse("a");
+    }
+
+    @Test(expected = JSONException.class)
+    public void brokenObject() {
+        RequestView.parse("{\"type\": \"echo\", ");
+    }
+
+    @Test(expected = JSONException.class)
+    public void duplicateKey() {
+        RequestView.parse("{\"type\": \"echo\", \"type\": \"add\"}");
+    }
+
+    @Test
+    public void handlersWorkOnTheView() {
+        JSONObject res = SockServer.echo(RequestView.parse("{\"type\":\"echo\",\"data\":\"whooooo\"}"));
+        assertTrue(res.getBoolean("ok"));
+        assertEquals("Here is your echo: whooooo", res.getString("echo"));
+
+        res = SockServer.echo(RequestView.parse("{\"type\":\"echo\",\"data\":33}"));
+        assertFalse(res.getBoolean("ok"));
+        assertEquals("Field data needs to be of type: String", res.getString("message"));
+    }
+}
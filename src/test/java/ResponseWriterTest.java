@@ -0,0 +1,113 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the streaming response encoder: the same bytes as writeUTF(res.toString()), responses
+ * written field by field, and responses too long for writeUTF.
+ */
+public class ResponseWriterTest {
+
+    @Test
+    public void writesTheBytesOfWriteUtfOfToString() throws Exception {
+        JSONObject res = new JSONObject();
+        res.put("ok", true);
+        res.put("type", "echo");
+        res.put("echo", "quote \" backslash \\ </script> tab\t nul\0 \u0085   é € 😀 end");
+        res.put("result", -1234567890123L);
+        res.put("min", Long.MIN_VALUE);
+        res.put("ratio", 2.50);
+        res.put("none", JSONObject.NULL);
+        res.put("nested", new JSONObject().put("a", new JSONArray().put(1).put("two").put(false)).put("b", new JSONObject()));
+        res.put("empty", "");
+        res.put("id", 42);
+
+        ResponseWriter writer = new ResponseWriter();
+        for (int i = 0; i < 2; i++) { // the buffer is reused
+            writer.write(res);
+            assertTrue(writer.fits());
+            assertArrayEquals(writeUtf(res.toString()), written(writer));
+            assertEquals(res.toString(), writer.text());
+        }
+    }
+
+    @Test
+    public void writesFieldsWithoutAJsonObject() throws Exception {
+        ResponseWriter writer = new ResponseWriter();
+        JSONObject req = new JSONObject().put("type", "echo").put("data", "hé / </ \"x\"").put("id", "a-1");
+        assertTrue(SockServer.echo(req, writer));
+        writer.end(req.opt("id"));
+        assertTrue(writer.ok());
+        JSONObject direct = new JSONObject(readUtf(written(writer)));
+        JSONObject built = SockServer.withId(req, SockServer.echo(req));
+        assertEquals(built.keySet(), direct.keySet());
+        for (String key : built.keySet()) {
+            assertEquals(key, built.get(key), direct.get(key));
+        }
+
+        assertFalse(SockServer.add(new JSONObject().put("type", "add").put("num1", "x").put("num2", 1), writer));
+        assertTrue(SockServer.add(new JSONObject().put("type", "add").put("num1", "2").put("num2", -7), writer));
+        writer.end(null);
+        assertEquals(-5, new JSONObject(readUtf(written(writer))).getInt("result"));
+    }
+
+    @Test
+    public void responsesTooLongForWriteUtfBecomeAnError() throws Exception {
+        char[] filler = new char[40_000];
+        Arrays.fill(filler, 'é'); // two bytes each
+        JSONObject res = new JSONObject().put("ok", true).put("type", "echo").put("echo", new String(filler)).put("id", 3);
+        ResponseWriter writer = new ResponseWriter();
+        writer.write(res);
+        assertFalse(writer.fits());
+        assertEquals(res.toString().length() + filler.length, writer.length());
+
+        writer.tooLarge();
+        JSONObject error = new JSONObject(readUtf(written(writer)));
+        assertFalse(error.getBoolean("ok"));
+        assertEquals("echo", error.getString("type"));
+        assertEquals(3, error.getInt("id"));
+        assertEquals(SockServer.tooLargeMessage(res.toString().length() + filler.length), error.getString("message"));
+    }
+
+    @Test
+    public void tooLargeLeavesOutAMissingType() throws Exception {
+        char[] filler = new char[70_000];
+        Arrays.fill(filler, 'x');
+        ResponseWriter writer = new ResponseWriter();
+        writer.write(new JSONObject().put("ok", true).put("data", new String(filler)));
+        assertFalse(writer.fits());
+
+        writer.tooLarge();
+        JSONObject error = new JSONObject(readUtf(written(writer)));
+        assertFalse(error.has("type"));
+        assertFalse(error.has("id"));
+        assertFalse(error.getBoolean("ok"));
+    }
+
+    private static byte[] written(ResponseWriter writer) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.writeTo(bytes);
+        byte[] viaBuffer = new byte[writer.buffer().remaining()];
+        writer.buffer().get(viaBuffer);
+        assertArrayEquals(bytes.toByteArray(), viaBuffer);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] writeUtf(String text) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(text);
+        return bytes.toByteArray();
+    }
+
+    private static String readUtf(byte[] framed) throws Exception {
+        return new DataInputStream(new ByteArrayInputStream(framed)).readUTF();
+    }
+}
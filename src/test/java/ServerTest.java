@@ -9,12 +9,14 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
 
 public class ServerTest {
 
+    static SockServer server;
     Socket sock;
     OutputStream out;
     ObjectOutputStream os;
@@ -28,18 +30,30 @@ public class ServerTest {
      * will execute before each test in the {@code ServerTest} class.
      * <p>
      * Responsibilities of this method include:
-     * - Connecting to the server running on localhost with port 8888.
+     * - Connecting to the server started for this test class.
      * - Initializing the socket for communication between the test client and server.
      * - Setting up the output stream for sending data to the server.
      * - Setting up the input stream for receiving data from the server.
      *
      * @throws Exception if an error occurs while setting up the connection or streams.
      */
-    // Establishing a connection to the server, make sure you start the server on localhost and 8888
+    // Each run starts its own server on a free port, so no server needs to be started by hand
+    // and several test runs can use the network at once.
+    @org.junit.BeforeClass
+    public static void startServer() throws Exception {
+        server = new SockServer(0, "virtual", WorkerPools.DEFAULT_POOL_SIZE);
+        server.start();
+    }
+
+    @org.junit.AfterClass
+    public static void stopServer() throws Exception {
+        server.stop(5, TimeUnit.SECONDS);
+    }
+
     @org.junit.Before
     public void setUp() throws Exception {
         // Establish connection to server and create in/out streams
-        sock = new Socket("localhost", 8888); // connect to host and socket
+        sock = new Socket("localhost", server.getPort()); // connect to host and socket
 
         // get output channel
         out = sock.getOutputStream();
@@ -0,0 +1,99 @@
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the service registry: lookup, and bulkhead executors that turn away requests beyond
+ * their capacity instead of holding up other services.
+ */
+public class ServiceRegistryTest {
+
+    @Test
+    public void unknownTypeHasNoService() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.register("echo", (req, holder, peer) -> new JSONObject().put("ok", true));
+        assertNull(registry.handle("nope", new JSONObject(), null, null, true));
+        assertTrue(registry.handle("echo", new JSONObject(), null, null, true).getBoolean("ok"));
+    }
+
+    @Test
+    public void fullBulkheadAnswersBusyWhileOtherServicesRun() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        registry.register("slow", (req, holder, peer) -> {
+            started.countDown();
+            release.await();
+            return new JSONObject().put("ok", true).put("thread", Thread.currentThread().getName());
+        }, 1, 0);
+        registry.register("fast", (req, holder, peer) -> new JSONObject().put("ok", true));
+
+        AtomicReference<JSONObject> first = new AtomicReference<>();
+        Thread caller = new Thread(() -> {
+            try {
+                first.set(registry.handle("slow", new JSONObject(), null, null, true));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        caller.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        JSONObject busy = registry.handle("slow", new JSONObject(), null, null, true);
+        assertFalse(busy.getBoolean("ok"));
+        assertEquals("Service slow is busy, please try again.", busy.getString("message"));
+        assertTrue(registry.handle("fast", new JSONObject(), null, null, true).getBoolean("ok"));
+
+        release.countDown();
+        caller.join(5000);
+        assertTrue(first.get().getString("thread").startsWith("service-slow-"));
+    }
+
+    @Test
+    public void callbackReceivesResponseWithoutWaiting() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        CountDownLatch release = new CountDownLatch(1);
+        registry.register("slow", (req, holder, peer) -> {
+            release.await();
+            return new JSONObject().put("ok", true);
+        }, 1, 0);
+        registry.register("fast", (req, holder, peer) -> new JSONObject().put("ok", true));
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<String> thread = new AtomicReference<>();
+        JSONObject res = registry.handle("slow", new JSONObject(), null, null, true, null, (result, failure) -> {
+            thread.set(Thread.currentThread().getName());
+            done.countDown();
+        });
+        assertSame(ServiceRegistry.DEFERRED, res);
+        // services on the calling thread still answer at once
+        assertTrue(registry.handle("fast", new JSONObject(), null, null, true, null, (result, failure) -> fail())
+                .getBoolean("ok"));
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(thread.get().startsWith("service-slow-"));
+    }
+
+    @Test
+    public void batchEntriesRunOnTheCallingThread() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.register("heavy", (req, holder, peer) -> new JSONObject().put("thread", Thread.currentThread().getName()), 1, 1);
+        assertEquals(Thread.currentThread().getName(),
+                registry.handle("heavy", new JSONObject(), null, null, false).getString("thread"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void serviceExceptionsReachTheCaller() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.register("broken", (req, holder, peer) -> {
+            throw new IllegalStateException("broken");
+        }, 1, 1);
+        registry.handle("broken", new JSONObject(), null, null, true);
+    }
+}
@@ -1,7 +1,10 @@
 import org.junit.Test;
 import static org.junit.Assert.*;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.math.BigInteger;
+
 public class Testing {
 
     // some tests for locally testing methods in the server
@@ -54,4 +57,149 @@ public class Testing {
         assertEquals(res3.getBoolean("ok"), false);
         assertEquals(res3.getString("message"), "Field data needs to be of type: String");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void requestIdIsEchoed() {
+        SockServer.Question[] holder = new SockServer.Question[1];
+        JSONObject res = SockServer.handleRequest("{\"type\":\"add\",\"num1\":\"1\",\"num2\":\"2\",\"id\":42}", holder, null);
+        assertEquals(3, res.getInt("result"));
+        assertEquals(42, res.getInt("id"));
+
+        res = SockServer.handleRequest("{\"id\":\"abc\"}", holder, null);
+        assertEquals(false, res.getBoolean("ok"));
+        assertEquals("abc", res.getString("id"));
+    }
+
+    @Test
+    public void statsCountsRequestsPerType() {
+        SockServer.Question[] holder = new SockServer.Question[1];
+        Exchange exchange = new Exchange();
+        exchange.begin("", 0, 0);
+        SockServer.handleRequest("{\"type\":\"echo\",\"data\":\"hi\"}", holder, null, exchange);
+        SockServer.completed(null, exchange);
+        assertEquals("echo", exchange.type);
+        assertTrue(exchange.ok);
+
+        JSONObject res = SockServer.handleRequest("{\"type\":\"stats\"}", holder, null);
+        assertEquals("stats", res.getString("type"));
+        assertTrue(res.getBoolean("ok"));
+        JSONObject echo = res.getJSONObject("services").getJSONObject("echo");
+        assertTrue(echo.getLong("requests") >= 1);
+        assertTrue(echo.getJSONObject("latencyUs").has("p999"));
+        assertTrue(res.getJSONObject("phases").getJSONObject("handler").getLong("count") >= 1);
+    }
+
+    @Test
+    public void batchKeepsOrder() {
+        JSONArray requests = new JSONArray();
+        for (int i = 0; i < 200; i++) {
+            JSONObject add = new JSONObject();
+            add.put("type", "add");
+            add.put("num1", String.valueOf(i));
+            add.put("num2", "1");
+            add.put("id", i);
+            requests.put(add);
+        }
+        JSONObject answer = new JSONObject();
+        answer.put("type", "quizgame");
+        answer.put("answer", "4");
+        requests.put(answer);
+        JSONObject nested = new JSONObject();
+        nested.put("type", "batch");
+        requests.put(nested);
+
+        JSONObject req = new JSONObject();
+        req.put("type", "batch");
+        req.put("requests", requests);
+        JSONObject res = SockServer.batch(req, new SockServer.Question[1], null);
+
+        assertTrue(res.getBoolean("ok"));
+        assertEquals("batch", res.getString("type"));
+        JSONArray responses = res.getJSONArray("responses");
+        assertEquals(202, responses.length());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i + 1, responses.getJSONObject(i).getInt("result"));
+            assertEquals(i, responses.getJSONObject(i).getInt("id"));
+        }
+        assertEquals("No active quiz question. Please request a new question first.",
+                responses.getJSONObject(200).getString("message"));
+        assertEquals("Type batch is not supported inside a batch.", responses.getJSONObject(201).getString("message"));
+    }
+
+    @Test
+    public void addQuestionsReportsEachItem() {
+        String unique = "Bulk question " + System.nanoTime();
+        JSONArray items = new JSONArray();
+        items.put(new JSONObject().put("question", unique).put("answer", "a"));
+        items.put(new JSONObject().put("question", "  " + unique.toUpperCase() + " ").put("answer", "b"));
+        items.put(new JSONObject().put("question", "What is 2+2?").put("answer", "4"));
+        items.put(new JSONObject().put("question", 5).put("answer", "x"));
+        items.put("not an object");
+        JSONObject req = new JSONObject();
+        req.put("type", "quizgame");
+        req.put("addQuestions", items);
+
+        JSONObject res = SockServer.quizGame(req, new SockServer.Question[1]);
+        assertTrue(res.getBoolean("ok"));
+        assertEquals(1, res.getInt("added"));
+        assertEquals(2, res.getInt("duplicates"));
+        assertEquals(2, res.getInt("invalid"));
+        JSONArray results = res.getJSONArray("results");
+        assertEquals("added", results.getString(0));
+        assertEquals("duplicate", results.getString(1));
+        assertEquals("duplicate", results.getString(2));
+        assertEquals("invalid", results.getString(3));
+        assertEquals("invalid", results.getString(4));
+
+        req.put("addQuestions", "nope");
+        res = SockServer.quizGame(req, new SockServer.Question[1]);
+        assertEquals(false, res.getBoolean("ok"));
+        assertEquals("Field addQuestions needs to be of type: JSON Array", res.getString("message"));
+    }
+
+    @Test
+    public void addQuestionReportsDuplicate() {
+        String unique = "Single question " + System.nanoTime();
+        JSONObject req = new JSONObject();
+        req.put("type", "quizgame");
+        req.put("addQuestion", true);
+        req.put("question", unique);
+        req.put("answer", "a");
+        assertTrue(SockServer.quizGame(req, new SockServer.Question[1]).getBoolean("ok"));
+
+        req.put("question", " " + unique.toLowerCase());
+        req.put("answer", "b");
+        JSONObject res = SockServer.quizGame(req, new SockServer.Question[1]);
+        assertEquals(false, res.getBoolean("ok"));
+        assertEquals("This question is already in the quiz.", res.getString("message"));
+        assertEquals("a", SockServer.quizQuestions.get(SockServer.quizQuestions.indexOf(unique)).answer);
+    }
+
+    @Test
+    public void addManyIsExact() {
+        JSONObject res = SockServer.handleRequest("{\"type\":\"addmany\",\"nums\":[2147483647, \"2147483647\", 2]}",
+                new SockServer.Question[1], null);
+        assertTrue(res.getBoolean("ok"));
+        assertEquals(4294967296L, res.getLong("result"));
+
+        res = SockServer.handleRequest("{\"type\":\"addmany\",\"nums\":[9223372036854775807, 9223372036854775807, 1]}",
+                new SockServer.Question[1], null);
+        assertEquals(new BigInteger("18446744073709551615"), new BigInteger(res.get("result").toString()));
+
+        // out of long range or not integral: rejected rather than wrapped or truncated
+        for (String nums : new String[]{"[99999999999999999999]", "[1, -9223372036854775809]", "[1.5]", "[1, \"1.5\"]", "[2.0]"}) {
+            res = SockServer.handleRequest("{\"type\":\"addmany\",\"nums\":" + nums + "}", new SockServer.Question[1], null);
+            assertFalse(nums, res.getBoolean("ok"));
+            assertEquals("Values in array need to be ints", res.getString("message"));
+        }
+
+        long[] nums = new long[AddMany.PARALLEL_THRESHOLD * 4 + 3];
+        BigInteger expected = BigInteger.ZERO;
+        for (int i = 0; i < nums.length; i++) {
+            nums[i] = (i % 2 == 0 ? Long.MAX_VALUE : Long.MIN_VALUE) + i;
+            expected = expected.add(BigInteger.valueOf(nums[i]));
+        }
+        assertEquals(expected, new BigInteger(AddMany.sum(nums).toString()));
+        assertEquals(-3L, AddMany.sum(new long[]{-1, -2}));
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the timing wheel: timers fire after their deadline, also several turns ahead, and
+ * can be pushed back, brought forward, disarmed and cancelled.
+ */
+public class TimingWheelTest {
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+    // 8 buckets, so deadlines of more than 80 ms are several turns ahead
+    private final TimingWheel wheel = new TimingWheel(TICK, 8, "test-wheel");
+
+    @Test
+    public void firesOnceAfterTheDeadline() throws Exception {
+        for (long delayMillis : new long[]{0, 30, 250}) {
+            CountDownLatch fired = new CountDownLatch(1);
+            AtomicLong firedAt = new AtomicLong();
+            TimingWheel.Timer timer = wheel.newTimer(() -> {
+                firedAt.set(System.nanoTime());
+                fired.countDown();
+            });
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            timer.expireAt(deadline);
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+            assertTrue("fired early by " + (deadline - firedAt.get()) + " ns", firedAt.get() - deadline >= -TICK);
+        }
+    }
+
+    @Test
+    public void laterDeadlineDelaysTheTimer() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        TimingWheel.Timer timer = wheel.newTimer(fired::incrementAndGet);
+        long start = System.nanoTime();
+        timer.expireAt(start + TimeUnit.MILLISECONDS.toNanos(50));
+        timer.expireAt(start + TimeUnit.MILLISECONDS.toNanos(300));
+        Thread.sleep(150);
+        assertEquals(0, fired.get());
+        Thread.sleep(400);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void earlierDeadlineFiresSooner() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimingWheel.Timer timer = wheel.newTimer(fired::countDown);
+        long start = System.nanoTime();
+        timer.expireAt(start + TimeUnit.SECONDS.toNanos(60));
+        Thread.sleep(50); // filed by now
+        timer.expireAt(start + TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void disarmedAndCancelledTimersDoNotFire() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        TimingWheel.Timer disarmed = wheel.newTimer(fired::incrementAndGet);
+        TimingWheel.Timer cancelled = wheel.newTimer(fired::incrementAndGet);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+        disarmed.expireAt(deadline);
+        cancelled.expireAt(deadline);
+        disarmed.disarm();
+        cancelled.cancel();
+        Thread.sleep(200);
+        assertEquals(0, fired.get());
+
+        disarmed.expireAt(System.nanoTime()); // a disarmed timer can be armed again
+        cancelled.expireAt(System.nanoTime());
+        Thread.sleep(100);
+        assertEquals(1, fired.get());
+    }
+}
@@ -0,0 +1,132 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for decoding serialized request Strings without ObjectInputStream, from a stream and
+ * from a buffer, including references, resets and long strings.
+ */
+public class WireFormatTest {
+
+    @Test
+    public void readsWhatObjectOutputStreamWrites() throws Exception {
+        char[] filler = new char[40_000];
+        Arrays.fill(filler, 'é'); // 80 KB of modified UTF-8, written as TC_LONGSTRING
+        String longString = new String(filler);
+        String constant = "{\"type\":\"echo\",\"data\":\"ü€\"}";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream os = new ObjectOutputStream(bytes)) {
+            os.writeObject(constant);
+            os.writeObject(longString);
+            os.writeObject(constant); // a reference to the first string
+            os.reset();
+            os.writeObject("");
+            os.writeObject(constant); // written again after the reset
+        }
+        String[] expected = {constant, longString, constant, "", constant};
+
+        WireFormat.StringReader reader = new WireFormat.StringReader(afterHeader(bytes.toByteArray()));
+        for (String s : expected) {
+            assertEquals(s, reader.read());
+        }
+        try {
+            reader.read();
+            fail("expected the end of the stream");
+        } catch (EOFException expectedEnd) {
+        }
+
+        // the buffer decoder gives the same strings, also when fed one byte at a time
+        WireFormat.StringDecoder decoder = new WireFormat.StringDecoder();
+        byte[] stream = bytes.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocate(stream.length);
+        int decoded = 0;
+        for (int i = 4; i < stream.length; i++) {
+            buf.put(stream[i]).flip();
+            String s;
+            while ((s = decoder.next(buf)) != null) {
+                assertEquals(expected[decoded++], s);
+            }
+            buf.compact();
+        }
+        assertEquals(expected.length, decoded);
+    }
+
+    @Test
+    public void otherObjectsAreRejectedBeforeTheyAreRead() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream os = new ObjectOutputStream(bytes)) {
+            os.writeObject("first");
+            os.writeObject(Integer.valueOf(7));
+        }
+        WireFormat.StringReader reader = new WireFormat.StringReader(afterHeader(bytes.toByteArray()));
+        assertEquals("first", reader.read());
+        try {
+            reader.read();
+            fail("an Integer must not be accepted");
+        } catch (StreamCorruptedException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("73")); // TC_OBJECT
+        }
+    }
+
+    @Test
+    public void referencesToEarlyStringsAreResolved() throws Exception {
+        String constant = "{\"type\":\"echo\",\"data\":\"hi\"}";
+        int others = 5000;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream os = new ObjectOutputStream(bytes)) {
+            os.writeObject(constant);
+            for (int i = 0; i < others; i++) {
+                os.writeObject("request " + i);
+            }
+            os.writeObject(constant); // a reference to the very first handle
+        }
+
+        WireFormat.StringReader reader = new WireFormat.StringReader(afterHeader(bytes.toByteArray()));
+        assertEquals(constant, reader.read());
+        for (int i = 0; i < others; i++) {
+            assertEquals("request " + i, reader.read());
+        }
+        assertEquals(constant, reader.read());
+
+        WireFormat.StringDecoder decoder = new WireFormat.StringDecoder();
+        byte[] stream = bytes.toByteArray();
+        ByteBuffer buf = ByteBuffer.wrap(stream, 4, stream.length - 4);
+        String last = null;
+        for (int i = 0; i < others + 2; i++) {
+            last = decoder.next(buf);
+        }
+        assertEquals(constant, last);
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void unassignedHandlesAreRejected() throws Exception {
+        WireFormat.HandleTable handles = new WireFormat.HandleTable();
+        handles.add("first");
+        assertEquals("first", handles.get(WireFormat.BASE_WIRE_HANDLE));
+        try {
+            handles.get(WireFormat.BASE_WIRE_HANDLE + 1);
+            fail("handle not assigned yet");
+        } catch (StreamCorruptedException expected) {
+        }
+        handles.clear();
+        try {
+            handles.get(WireFormat.BASE_WIRE_HANDLE);
+            fail("handles are forgotten on reset");
+        } catch (StreamCorruptedException expected) {
+        }
+    }
+
+    // The stream header is checked by the server before requests are decoded.
+    private static ByteArrayInputStream afterHeader(byte[] stream) {
+        return new ByteArrayInputStream(stream, 4, stream.length - 4);
+    }
+}